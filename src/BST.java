@@ -7,6 +7,17 @@
  *
  *  A symbol table implemented with a binary search tree.
  *
+ *  A tree built with a Monoid also keeps, in every node, the combination of the values in its
+ *  subtree, so aggregate(lo, hi) can combine all values in a key range (a sum, a minimum, ...)
+ *  in a single descent instead of visiting every key.
+ *
+ *  For skewed workloads enableCache() puts a small CLOCK cache (see LookupCache) in front of get
+ *  and contains, so hot keys are found with a hash probe; every write keeps it coherent.
+ *
+ *  split, join, union, intersection and difference work on whole subtrees with the join-based
+ *  algorithms, rebalancing by subtree weight only along the paths they rebuild, and fork large
+ *  subproblems onto the common ForkJoinPool.
+ *
  *  % more tinyST.txt
  *  S E A R C H E X A M P L E
  *
@@ -23,16 +34,62 @@
  *  X 7
  */
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Comparator;
 import java.util.NoSuchElementException;
-import java.util.Stack;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BST<Key extends Comparable<Key>, Value> {
 
     /** Binary Search Tree's (BST's) Root */
     private Node root;
 
-    /** A BST Node */
-    private class Node {
+    /**
+     * An associative way of combining values, such as a sum or a minimum, with an identity element.
+     * combine need not be commutative: values are always combined in key order.
+     */
+    public interface Monoid<T> {
+        T identity();
+        T combine(T a, T b);
+    }
+
+    /** Combines the values of subtrees for aggregate(), or null if the tree keeps no aggregates */
+    private final Monoid<Value> monoid;
+
+    /** Instrumentation, or null while metrics are disabled */
+    private BSTMetrics metrics;
+
+    /** Front cache for get, or null while caching is disabled */
+    private LookupCache<Key, Value> cache;
+
+    /** Initializes an empty tree. */
+    public BST() {
+        this(null);
+    }
+
+    /**
+     * Initializes an empty tree that maintains the combination of the values in every subtree.
+     * @param monoid How to combine values, or null to keep no aggregates.
+     */
+    public BST(Monoid<Value> monoid) {
+        this.monoid = monoid;
+    }
+
+    /** A BST Node, exposed to callers of entries() as a read-only key-value pair */
+    private class Node implements Map.Entry<Key, Value> {
 
         /** Key that determine position of data in BST. */
         private Key key;
@@ -52,8 +109,42 @@ public class BST<Key extends Comparable<Key>, Value> {
             this.val = val;
             this.N = N;
         }
+
+        public Key getKey()               { return key;                                 }
+        public Value getValue()           { return val;                                 }
+        public Value setValue(Value val)  { throw new UnsupportedOperationException();  }
+
+        // equality as specified by Map.Entry, so entries compare like any other map's entries
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return key.equals(e.getKey()) && val.equals(e.getValue());
+        }
+        public int hashCode()             { return key.hashCode() ^ val.hashCode();     }
+        public String toString()          { return key + "=" + val;                     }
+    }
+
+    /** A Node of a tree with a monoid, which also keeps the aggregate of its subtree */
+    private class AggNode extends Node {
+
+        /** Combination of the values in subtree, in key order */
+        private Value agg;
+
+        public AggNode(Key key, Value val, int N) {
+            super(key, val, N);
+            this.agg = val;
+        }
+    }
+
+    /** Creates a node, with room for an aggregate only if this tree keeps aggregates. */
+    private Node newNode(Key key, Value val, int N) {
+        if (monoid == null) return new Node(key, val, N);
+        else return new AggNode(key, val, N);
     }
 
+    /** Stack of the nodes updateAggPath visits, reused so that writes do not allocate */
+    private ArrayList<Node> aggPath;
+
     /** Check to see if BST is empty */
     public boolean isEmpty() {
         return size() == 0;
@@ -73,6 +164,37 @@ public class BST<Key extends Comparable<Key>, Value> {
         else return x.N;
     }
 
+    /** Return the combination of the values in the subtree rooted at x. */
+    private Value agg(Node x) {
+        if (x == null) return monoid.identity();
+        else return ((AggNode) x).agg;
+    }
+
+    /** Recomputes the aggregate of x from its children, which must already be up to date. */
+    private void updateAgg(Node x) {
+        ((AggNode) x).agg = monoid.combine(monoid.combine(agg(x.left), x.val), agg(x.right));
+    }
+
+    /**
+     * Recomputes the aggregates on the search path of key, bottom up, plus the left spine of the
+     * right subtree of key's node (the same nodes checkPath visits). Does nothing without a monoid.
+     */
+    private void updateAggPath(Key key) {
+        if (monoid == null || key == null) return;
+        if (aggPath == null) aggPath = new ArrayList<Node>();
+        boolean found = false;
+        for (Node x = root; x != null; ) {
+            aggPath.add(x);
+            int cmp = found ? -1 : key.compareTo(x.key);
+            if (cmp == 0) found = true;
+            if (cmp < 0) x = x.left;
+            else         x = x.right;
+        }
+        for (int i = aggPath.size() - 1; i >= 0; i--)
+            updateAgg(aggPath.get(i));
+        aggPath.clear();
+    }
+
    /**
     * Search BST for given key, and return associated value if found,
     * return null if not found
@@ -86,24 +208,55 @@ public class BST<Key extends Comparable<Key>, Value> {
         return get(key) != null;
     }
 
-    /** Return a value associated with a given key in the full BST, or null if no such key exists. */
+    /**
+     * Return a value associated with a given key in the full BST, or null if no such key exists.
+     * With the lookup cache enabled, get (and contains) update the cache's entries, reference
+     * bits and statistics, so they are no longer read-only: concurrent gets that were safe under
+     * an external read lock must then hold the write lock instead.
+     */
     public Value get(Key key) {
-        return get(root, key);
+        BSTMetrics m = metrics;
+        long start = (m == null) ? 0 : System.nanoTime();
+        LookupCache<Key, Value> c = cache;
+        if (c != null) {
+            Value val = c.get(key);
+            if (val != null) {
+                if (m != null) m.record(BSTMetrics.Operation.GET, System.nanoTime() - start, 0);
+                return val;
+            }
+        }
+        Node x = find(root, key, m, start);
+        if (x == null) return null;
+        // cache under the tree's own key, which is the one put and delete invalidate
+        if (c != null) c.put(x.key, x.val);
+        return x.val;
+    }
+
+    private Value get(Node x, Key key) {
+        Node t = find(x, key, null, 0);
+        return (t == null) ? null : t.val;
     }
 
     /**
-     * Retrieve a value from any root given a certain key.
+     * Retrieve the node holding a certain key from any root.
      * @param x Root of tree (or subtree) to begin searching.
      * @param key Key to search for.
-     * @return Value from given key (or null if nonexistent?).
+     * @param m Metrics to record the search in, or null.
+     * @param start Time the operation started, if m is not null.
+     * @return Node whose key compares equal to the given key (or null if nonexistent).
      */
-    private Value get(Node x, Key key) {
-        if (x == null) return null;
-        int cmp = key.compareTo(x.key);
-        // Recursively searches until it finds correct key, then returns value at that node.
-        if      (cmp < 0) return get(x.left, key);
-        else if (cmp > 0) return get(x.right, key);
-        else              return x.val;
+    private Node find(Node x, Key key, BSTMetrics m, long start) {
+        // Iteratively searches until it finds correct key, then returns that node.
+        int compares = 0;
+        while (x != null) {
+            compares++;
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) x = x.right;
+            else break;
+        }
+        if (m != null) m.record(BSTMetrics.Operation.GET, System.nanoTime() - start, compares);
+        return x;
     }
 
    /**
@@ -112,17 +265,60 @@ public class BST<Key extends Comparable<Key>, Value> {
     */
     public void put(Key key, Value val) {
         if (val == null) { delete(key); return; }
-        root = put(root, key, val);
-        assert check();
+        BSTMetrics m = metrics;
+        long start = (m == null) ? 0 : System.nanoTime();
+        root = put(root, key, val, m, start);
+        updateAggPath(key);
+        assert checkPath(key);
     }
 
-    private Node put(Node x, Key key, Value val) {
-        if (x == null) return new Node(key, val, 1);
-        int cmp = key.compareTo(x.key);
-        if      (cmp < 0) x.left  = put(x.left,  key, val);
-        else if (cmp > 0) x.right = put(x.right, key, val);
-        else              x.val   = val;
-        x.N = 1 + size(x.left) + size(x.right);
+    /**
+     * Inserts key-value pair into the tree rooted at x without recursion.
+     * @param m Metrics to record the insertion in, or null.
+     * @param start Time the operation started, if m is not null.
+     * @return the (possibly new) root of the tree.
+     */
+    private Node put(Node x, Key key, Value val, BSTMetrics m, long start) {
+        // first pass: if the key is already present just replace its value, no counts change
+        int compares = 0;
+        Node t = x;
+        while (t != null) {
+            compares++;
+            int cmp = key.compareTo(t.key);
+            if      (cmp < 0) t = t.left;
+            else if (cmp > 0) t = t.right;
+            else {
+                t.val = val;
+                if (cache != null) cache.replace(t.key, val);
+                if (m != null) m.record(BSTMetrics.Operation.PUT, System.nanoTime() - start, compares);
+                return x;
+            }
+        }
+
+        // second pass: the key is new, so every node on the search path gains one descendant
+        Node node = newNode(key, val, 1);
+        int depth = 0;
+        if (x == null) x = node;
+        else {
+            t = x;
+            while (true) {
+                t.N++;
+                depth++;
+                compares++;
+                if (key.compareTo(t.key) < 0) {
+                    if (t.left == null) { t.left = node; break; }
+                    t = t.left;
+                }
+                else {
+                    if (t.right == null) { t.right = node; break; }
+                    t = t.right;
+                }
+            }
+        }
+        if (m != null) {
+            m.record(BSTMetrics.Operation.PUT, System.nanoTime() - start, compares);
+            m.inserted(depth);
+        }
         return x;
     }
 
@@ -132,51 +328,120 @@ public class BST<Key extends Comparable<Key>, Value> {
 
     public void deleteMin() {
         if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        BSTMetrics m = metrics;
+        long start = (m == null) ? 0 : System.nanoTime();
+        if (cache != null) cache.invalidate(min());
         root = deleteMin(root);
-        assert check();
+        if (m != null) deleted(m, BSTMetrics.Operation.DELETE_MIN, start, 0);
+        updateAggPath(min());
+        assert checkPath(min());
     }
 
     private Node deleteMin(Node x) {
         if (x.left == null) return x.right;
-        x.left = deleteMin(x.left);
-        x.N = size(x.left) + size(x.right) + 1;
+        // walk down the left spine to the parent of the minimum, decrementing counts on the way
+        Node t = x;
+        while (t.left.left != null) {
+            t.N--;
+            t = t.left;
+        }
+        t.N--;
+        t.left = t.left.right;
         return x;
     }
 
     public void deleteMax() {
         if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        BSTMetrics m = metrics;
+        long start = (m == null) ? 0 : System.nanoTime();
+        if (cache != null) cache.invalidate(max());
         root = deleteMax(root);
-        assert check();
+        if (m != null) deleted(m, BSTMetrics.Operation.DELETE_MAX, start, 0);
+        updateAggPath(max());
+        assert checkPath(max());
     }
 
     private Node deleteMax(Node x) {
         if (x.right == null) return x.left;
-        x.right = deleteMax(x.right);
-        x.N = size(x.left) + size(x.right) + 1;
+        // walk down the right spine to the parent of the maximum, decrementing counts on the way
+        Node t = x;
+        while (t.right.right != null) {
+            t.N--;
+            t = t.right;
+        }
+        t.N--;
+        t.right = t.right.left;
         return x;
     }
 
     public void delete(Key key) {
-        root = delete(root, key);
-        assert check();
+        BSTMetrics m = metrics;
+        long start = (m == null) ? 0 : System.nanoTime();
+        root = delete(root, key, m, start);
+        // the successor's new position and the spine it was cut from are on its own path, which
+        // must be fixed before the path of key, whose nodes sit above them
+        if (monoid != null) {
+            updateAggPath(key(ceiling(root, key)));
+            updateAggPath(key);
+        }
+        assert checkPath(key) && checkPath(key(ceiling(root, key)));
     }
 
-    private Node delete(Node x, Key key) {
-        if (x == null) return null;
-        int cmp = key.compareTo(x.key);
-        if      (cmp < 0) x.left  = delete(x.left,  key);
-        else if (cmp > 0) x.right = delete(x.right, key);
-        else { 
-            if (x.right == null) return x.left;
-            if (x.left  == null) return x.right;
-            Node t = x;
-            x = min(t.right);
-            x.right = deleteMin(t.right);
-            x.left = t.left;
-        } 
-        x.N = size(x.left) + size(x.right) + 1;
+    /** Records a deletion that started at the given time. */
+    private void deleted(BSTMetrics m, BSTMetrics.Operation op, long start, int compares) {
+        m.record(op, System.nanoTime() - start, compares);
+        m.invalidateHeight();
+    }
+
+    /**
+     * Removes key from the tree rooted at x without recursion.
+     * @param m Metrics to record the deletion in, or null.
+     * @param start Time the operation started, if m is not null.
+     * @return the (possibly new) root of the tree.
+     */
+    private Node delete(Node x, Key key, BSTMetrics m, long start) {
+        // find the node and its parent, optimistically decrementing the counts of its ancestors
+        int compares = 0;
+        Node parent = null;
+        Node t = x;
+        while (t != null) {
+            compares++;
+            int cmp = key.compareTo(t.key);
+            if (cmp == 0) break;
+            t.N--;
+            parent = t;
+            if (cmp < 0) t = t.left;
+            else         t = t.right;
+        }
+
+        // key not found: restore the counts we decremented and leave the tree unchanged
+        if (t == null) {
+            for (Node a = x; a != null; a = (key.compareTo(a.key) < 0) ? a.left : a.right) {
+                compares++;
+                a.N++;
+            }
+            if (m != null) m.record(BSTMetrics.Operation.DELETE, System.nanoTime() - start, compares);
+            return x;
+        }
+        if (m != null) deleted(m, BSTMetrics.Operation.DELETE, start, compares);
+        if (cache != null) cache.invalidate(t.key);
+
+        // splice t out, replacing it with its successor when it has two children (Hibbard deletion)
+        Node replacement;
+        if      (t.right == null) replacement = t.left;
+        else if (t.left  == null) replacement = t.right;
+        else {
+            replacement = min(t.right);
+            replacement.right = deleteMin(t.right);
+            replacement.left = t.left;
+            replacement.N = size(replacement.left) + size(replacement.right) + 1;
+        }
+
+        if (parent == null)         return replacement;
+        if (parent.left == t) parent.left  = replacement;
+        else                  parent.right = replacement;
         return x;
-    } 
+    }
 
 
    /**
@@ -188,8 +453,7 @@ public class BST<Key extends Comparable<Key>, Value> {
     } 
 
     private Node min(Node x) { 
-        if (x.left == null) return x; 
-        else                return min(x.left); 
+        return iterativeMin(x);
     }
 
     /** Iteratively finds the minimum key in the BST. */
@@ -225,8 +489,7 @@ public class BST<Key extends Comparable<Key>, Value> {
     } 
 
     private Node max(Node x) { 
-        if (x.right == null) return x; 
-        else                 return max(x.right); 
+        return iterativeMax(x);
     }
 
     /** Iteratively finds the maximum key in the BST. */
@@ -257,37 +520,53 @@ public class BST<Key extends Comparable<Key>, Value> {
     }
 
     public Key floor(Key key) {
-        Node x = floor(root, key);
-        if (x == null) return null;
-        else return x.key;
+        BSTMetrics m = metrics;
+        return key(floor(root, key, m, (m == null) ? 0 : System.nanoTime()));
     } 
 
-    private Node floor(Node x, Key key) {
+    /** Returns the key of x, or null if x is null. */
+    private Key key(Node x) {
         if (x == null) return null;
-        int cmp = key.compareTo(x.key);
-        if (cmp == 0) return x;
-        if (cmp <  0) return floor(x.left, key);
-        Node t = floor(x.right, key); 
-        if (t != null) return t;
-        else return x; 
+        else return x.key;
+    }
+
+    private Node floor(Node x, Key key, BSTMetrics m, long start) {
+        // the floor is the last node we stepped right from, unless we hit the key exactly
+        int compares = 0;
+        Node best = null;
+        while (x != null) {
+            compares++;
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) { best = x; break; }
+            if (cmp <  0) x = x.left;
+            else        { best = x; x = x.right; }
+        }
+        if (m != null) m.record(BSTMetrics.Operation.FLOOR, System.nanoTime() - start, compares);
+        return best;
     } 
 
     public Key ceiling(Key key) {
-        Node x = ceiling(root, key);
-        if (x == null) return null;
-        else return x.key;
+        BSTMetrics m = metrics;
+        return key(ceiling(root, key, m, (m == null) ? 0 : System.nanoTime()));
     }
 
     private Node ceiling(Node x, Key key) {
-        if (x == null) return null;
-        int cmp = key.compareTo(x.key);
-        if (cmp == 0) return x;
-        if (cmp < 0) { 
-            Node t = ceiling(x.left, key); 
-            if (t != null) return t;
-            else return x; 
-        } 
-        return ceiling(x.right, key); 
+        return ceiling(x, key, null, 0);
+    }
+
+    private Node ceiling(Node x, Key key, BSTMetrics m, long start) {
+        // the ceiling is the last node we stepped left from, unless we hit the key exactly
+        int compares = 0;
+        Node best = null;
+        while (x != null) {
+            compares++;
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) { best = x; break; }
+            if (cmp >  0) x = x.right;
+            else        { best = x; x = x.left; }
+        }
+        if (m != null) m.record(BSTMetrics.Operation.CEILING, System.nanoTime() - start, compares);
+        return best;
     } 
 
    /**
@@ -295,71 +574,488 @@ public class BST<Key extends Comparable<Key>, Value> {
     */
     public Key select(int k) {
         if (k < 0 || k >= size())  return null;
-        Node x = select(root, k);
-        return x.key;
+        BSTMetrics m = metrics;
+        return select(root, k, m, (m == null) ? 0 : System.nanoTime()).key;
     }
 
-    // Return key of rank k. 
     private Node select(Node x, int k) {
-        if (x == null) return null; 
-        int t = size(x.left); 
-        if      (t > k) return select(x.left,  k); 
-        else if (t < k) return select(x.right, k-t-1); 
-        else            return x; 
+        return select(x, k, null, 0);
+    }
+
+    // Return key of rank k. Compares no keys, so metrics count the subtree sizes compared with k.
+    private Node select(Node x, int k, BSTMetrics m, long start) {
+        int compares = 0;
+        while (x != null) {
+            compares++;
+            int t = size(x.left); 
+            if      (t > k) x = x.left; 
+            else if (t < k) { k = k-t-1; x = x.right; }
+            else            break; 
+        }
+        if (m != null) m.record(BSTMetrics.Operation.SELECT, System.nanoTime() - start, compares);
+        return x;
     } 
 
     public int rank(Key key) {
-        return rank(key, root);
+        BSTMetrics m = metrics;
+        return rank(key, root, m, (m == null) ? 0 : System.nanoTime());
     } 
 
-    // Number of keys in the subtree less than key.
     private int rank(Key key, Node x) {
-        if (x == null) return 0; 
-        int cmp = key.compareTo(x.key); 
-        if      (cmp < 0) return rank(key, x.left); 
-        else if (cmp > 0) return 1 + size(x.left) + rank(key, x.right); 
-        else              return size(x.left); 
+        return rank(key, x, null, 0);
+    }
+
+    // Number of keys in the subtree less than key.
+    private int rank(Key key, Node x, BSTMetrics m, long start) {
+        int compares = 0;
+        int r = 0;
+        while (x != null) {
+            compares++;
+            int cmp = key.compareTo(x.key); 
+            if      (cmp < 0) x = x.left; 
+            else if (cmp > 0) { r += 1 + size(x.left); x = x.right; }
+            else            { r += size(x.left); break; }
+        }
+        if (m != null) m.record(BSTMetrics.Operation.RANK, System.nanoTime() - start, compares);
+        return r;
     } 
 
    /**
     * Range count and range search.
     */
     public Iterable<Key> keys() {
-        return keys(min(), max());
+        return keys(null, null);
     }
 
+    /**
+     * Returns the keys in [lo, hi] in ascending order. The keys are produced lazily while iterating,
+     * walking the tree with O(height) memory instead of copying the range into a Queue first, so a
+     * caller that stops early only pays for the keys it looked at. The tree must not be modified
+     * while an iteration is in progress.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
     public Iterable<Key> keys(Key lo, Key hi) {
-        Queue<Key> queue = new Queue<Key>();
-        keys(root, queue, lo, hi);
-        return queue;
+        return () -> new KeyIterator(new InOrderWalker(root, lo, hi));
     } 
 
-    private void keys(Node x, Queue<Key> queue, Key lo, Key hi) { 
-        if (x == null) return; 
-        int cmplo = lo.compareTo(x.key); 
-        int cmphi = hi.compareTo(x.key); 
-        if (cmplo < 0) keys(x.left, queue, lo, hi); 
-        if (cmplo <= 0 && cmphi >= 0) queue.enqueue(x.key); 
-        if (cmphi > 0) keys(x.right, queue, lo, hi); 
-    } 
+    /**
+     * Returns the key-value pairs with keys in [lo, hi] in ascending key order, produced lazily like
+     * keys(lo, hi), so callers need no second get per key. The entries are read-only views of the
+     * tree's own nodes, so no entry objects are allocated.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Iterable<Map.Entry<Key, Value>> entries(Key lo, Key hi) {
+        return () -> new InOrderWalker(root, lo, hi);
+    }
+
+    /** Returns all key-value pairs in ascending key order. */
+    public Iterable<Map.Entry<Key, Value>> entries() {
+        return entries(null, null);
+    }
+
+    /** Returns a sequential stream of all keys in ascending order. */
+    public Stream<Key> stream() {
+        return entryStream(false).map(Map.Entry::getKey);
+    }
+
+    /** Returns a sequential stream of the keys in [lo, hi] in ascending order. */
+    public Stream<Key> stream(Key lo, Key hi) {
+        return entryStream(lo, hi, false).map(Map.Entry::getKey);
+    }
+
+    /** Returns a parallel stream of all keys, split into balanced parts using the subtree counts. */
+    public Stream<Key> parallelStream() {
+        return entryStream(true).map(Map.Entry::getKey);
+    }
+
+    /** Returns a parallel stream of the keys in [lo, hi], split using the subtree counts. */
+    public Stream<Key> parallelStream(Key lo, Key hi) {
+        return entryStream(lo, hi, true).map(Map.Entry::getKey);
+    }
+
+    /** Returns a stream of all key-value pairs in ascending key order. */
+    public Stream<Map.Entry<Key, Value>> entryStream(boolean parallel) {
+        return StreamSupport.stream(new RankSpliterator(0, size()), parallel);
+    }
+
+    /**
+     * Returns a stream of the key-value pairs with keys in [lo, hi] in ascending key order.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Stream<Map.Entry<Key, Value>> entryStream(Key lo, Key hi, boolean parallel) {
+        int from = fromRank(lo);
+        return StreamSupport.stream(new RankSpliterator(from, toRank(lo, hi, from)), parallel);
+    }
+
+    /** Returns the rank of the first key in [lo, hi], where a null lo means no lower bound. */
+    private int fromRank(Key lo) {
+        if (lo == null) return 0;
+        else return rank(lo, root);
+    }
+
+    /**
+     * Returns one past the rank of the last key in [lo, hi], or from if the range is empty, where
+     * a null hi means no upper bound.
+     */
+    private int toRank(Key lo, Key hi, int from) {
+        if (hi == null)                              return size();
+        if (lo != null && lo.compareTo(hi) > 0)      return from;
+        return Math.max(from, rank(hi, root) + (get(root, hi) != null ? 1 : 0));
+    }
+
+   /**
+    * Parallel reduction.
+    */
+
+    /** Rank ranges at most this long are reduced sequentially by parallelReduce. */
+    private static final int PARALLEL_REDUCE_THRESHOLD = 1 << 13;
+
+    /**
+     * Maps every key-value pair with a key in [lo, hi] and combines the results in key order, on
+     * the common fork-join pool. The subtree counts let the rank range be cut into halves of
+     * exactly equal size however unbalanced the tree is, and each part below the threshold is
+     * reduced by a sequential walk that starts with one select. The tree must not be modified
+     * while the reduction runs.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     * @param mapper Maps a key and its value to a partial result.
+     * @param combiner Combines two partial results, left one first; must be associative.
+     * @return the combined result, or null if no key is in range.
+     */
+    public <R> R parallelReduce(Key lo, Key hi, BiFunction<? super Key, ? super Value, ? extends R> mapper,
+                                BinaryOperator<R> combiner) {
+        int from = fromRank(lo);
+        int to = toRank(lo, hi, from);
+        if (from >= to) return null;
+        return ForkJoinPool.commonPool().invoke(new ReduceTask<R>(from, to, mapper, combiner));
+    }
+
+    /**
+     * Counts the key-value pairs with a key in [lo, hi] that satisfy predicate, in parallel like
+     * parallelReduce.
+     */
+    public long parallelCount(Key lo, Key hi, BiPredicate<? super Key, ? super Value> predicate) {
+        Long count = parallelReduce(lo, hi, (key, val) -> predicate.test(key, val) ? 1L : 0L, Long::sum);
+        return (count == null) ? 0 : count;
+    }
+
+    /** Reduces the nodes of rank from (inclusive) to to (exclusive), forking the left half. */
+    private class ReduceTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final BiFunction<? super Key, ? super Value, ? extends R> mapper;
+        private final BinaryOperator<R> combiner;
+
+        public ReduceTask(int from, int to, BiFunction<? super Key, ? super Value, ? extends R> mapper,
+                          BinaryOperator<R> combiner) {
+            this.from = from;
+            this.to = to;
+            this.mapper = mapper;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= PARALLEL_REDUCE_THRESHOLD) {
+                InOrderWalker walker = new InOrderWalker(root, select(root, from).key, null);
+                Node x = walker.nextNode();
+                R result = mapper.apply(x.key, x.val);
+                for (int i = from + 1; i < to; i++) {
+                    x = walker.nextNode();
+                    result = combiner.apply(result, mapper.apply(x.key, x.val));
+                }
+                return result;
+            }
+            int mid = (from + to) >>> 1;
+            ReduceTask<R> left = new ReduceTask<R>(from, mid, mapper, combiner);
+            left.fork();
+            R right = new ReduceTask<R>(mid, to, mapper, combiner).compute();
+            return combiner.apply(left.join(), right);
+        }
+    }
+
+    /**
+     * Spliterator over the nodes of rank from (inclusive) to to (exclusive). Thanks to the subtree
+     * counts the exact size of every part is known, and a split just halves the rank range in
+     * constant time; each part only locates its first node (one select) when it starts traversing.
+     * The tree must not be modified while a stream over it is running.
+     */
+    private class RankSpliterator implements Spliterator<Map.Entry<Key, Value>> {
 
+        /** Rank of the next node to visit, and one past the rank of the last */
+        private int from, to;
+
+        /** Walk positioned at rank from, created once traversal begins */
+        private InOrderWalker walker;
+
+        public RankSpliterator(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean tryAdvance(Consumer<? super Map.Entry<Key, Value>> action) {
+            if (from >= to) return false;
+            if (walker == null) walker = new InOrderWalker(root, select(root, from).key, null);
+            action.accept(walker.nextNode());
+            from++;
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super Map.Entry<Key, Value>> action) {
+            while (tryAdvance(action)) { }
+        }
+
+        public Spliterator<Map.Entry<Key, Value>> trySplit() {
+            if (walker != null || to - from < 2) return null;
+            int mid = (from + to) >>> 1;
+            RankSpliterator prefix = new RankSpliterator(from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return to - from;
+        }
+
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+        }
+
+        public Comparator<? super Map.Entry<Key, Value>> getComparator() {
+            return Map.Entry.comparingByKey();
+        }
+    }
+
+    // an iterator over the keys of a walk, doesn't implement remove() since it's optional
+    private class KeyIterator implements Iterator<Key> {
+        private final InOrderWalker walker;
+
+        public KeyIterator(InOrderWalker walker) {
+            this.walker = walker;
+        }
+
+        public boolean hasNext()  { return walker.hasNext();                    }
+        public void remove()      { throw new UnsupportedOperationException();  }
+        public Key next()         { return walker.nextNode().key;               }
+    }
+
+    /**
+     * Walks a subtree in key order using an explicit stack instead of recursion, so the depth of
+     * the tree costs heap slots rather than stack frames. The stack only ever holds the nodes whose
+     * left subtrees are still being visited, i.e. at most height + 1 nodes.
+     */
+    private class InOrderWalker implements Iterator<Map.Entry<Key, Value>> {
+
+        /** Nodes still to be visited, the next one in key order on top */
+        private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+
+        /** Largest key of interest, or null to walk to the maximum */
+        private final Key hi;
+
+        /**
+         * Starts a walk over the keys of the subtree rooted at x that lie in [lo, hi].
+         * @param x Root of the subtree to walk.
+         * @param lo Smallest key of interest, or null to start at the minimum.
+         * @param hi Largest key of interest, or null to walk to the maximum.
+         */
+        public InOrderWalker(Node x, Key lo, Key hi) {
+            this.hi = hi;
+            // push the path to lo, skipping nodes (and their left subtrees) that are smaller than lo
+            while (x != null) {
+                int cmp = (lo == null) ? -1 : lo.compareTo(x.key);
+                if (cmp < 0)      { stack.push(x); x = x.left; }
+                else if (cmp > 0) x = x.right;
+                else            { stack.push(x); break; }
+            }
+        }
+
+        public boolean hasNext() {
+            if (stack.isEmpty()) return false;
+            if (hi == null || hi.compareTo(stack.peek().key) >= 0) return true;
+            stack.clear();      // every remaining key is larger than hi
+            return false;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map.Entry<Key, Value> next() {
+            return nextNode();
+        }
+
+        public Node nextNode() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Node x = stack.pop();
+            // every key in x's right subtree follows x, so push that subtree's left spine
+            for (Node t = x.right; t != null; t = t.left)
+                stack.push(t);
+            return x;
+        }
+    }
+
+    /** Returns the number of keys in [lo, hi], in one descent of the tree. */
     public int size(Key lo, Key hi) {
         if (lo.compareTo(hi) > 0) return 0;
-        if (contains(hi)) return rank(hi) - rank(lo) + 1;
-        else              return rank(hi) - rank(lo);
+        Node top = rangeRoot(lo, hi);
+        if (top == null) return 0;
+
+        // left of the range root, every node >= lo counts along with its right subtree
+        int count = 1;
+        for (Node x = top.left; x != null; ) {
+            int cmp = lo.compareTo(x.key);
+            if (cmp <= 0) count += 1 + size(x.right);
+            if (cmp == 0) break;
+            x = (cmp < 0) ? x.left : x.right;
+        }
+        // right of the range root, every node <= hi counts along with its left subtree
+        for (Node x = top.right; x != null; ) {
+            int cmp = hi.compareTo(x.key);
+            if (cmp >= 0) count += 1 + size(x.left);
+            if (cmp == 0) break;
+            x = (cmp > 0) ? x.right : x.left;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the root of the smallest subtree holding every key in [lo, hi]: the highest node in
+     * the range, where the paths to lo and hi part. Returns null if no key is in range.
+     */
+    private Node rangeRoot(Key lo, Key hi) {
+        Node x = root;
+        while (x != null) {
+            if      (hi.compareTo(x.key) < 0) x = x.left;
+            else if (lo.compareTo(x.key) > 0) x = x.right;
+            else                              return x;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the combination, in key order, of the values whose keys lie in [lo, hi], using the
+     * subtree aggregates so that only the paths to lo and hi are walked.
+     * @return the monoid's identity if no key is in range.
+     * @throws IllegalStateException if the tree was not created with a Monoid.
+     */
+    public Value aggregate(Key lo, Key hi) {
+        if (monoid == null) throw new IllegalStateException("BST was created without a Monoid");
+        if (lo.compareTo(hi) > 0) return monoid.identity();
+        Node top = rangeRoot(lo, hi);
+        if (top == null) return monoid.identity();
+
+        // each node >= lo found walking down is to the left of everything combined so far
+        Value left = monoid.identity();
+        for (Node x = top.left; x != null; ) {
+            int cmp = lo.compareTo(x.key);
+            if (cmp <= 0) left = monoid.combine(monoid.combine(x.val, agg(x.right)), left);
+            if (cmp == 0) break;
+            x = (cmp < 0) ? x.left : x.right;
+        }
+        // each node <= hi found walking down is to the right of everything combined so far
+        Value right = monoid.identity();
+        for (Node x = top.right; x != null; ) {
+            int cmp = hi.compareTo(x.key);
+            if (cmp >= 0) right = monoid.combine(right, monoid.combine(agg(x.left), x.val));
+            if (cmp == 0) break;
+            x = (cmp > 0) ? x.right : x.left;
+        }
+        return monoid.combine(monoid.combine(left, top.val), right);
+    }
+
+    /** Returns the combination of every value in the tree, in key order. */
+    public Value aggregate() {
+        if (monoid == null) throw new IllegalStateException("BST was created without a Monoid");
+        return agg(root);
     }
 
 
-    /** Returns the height of the BST. */
-    public int height() { return height(root); }
+   /**
+    * Lookup cache.
+    */
+
+    /**
+     * Starts caching the results of get and contains in a CLOCK cache of the given capacity, kept
+     * coherent by every write. Calling it again returns the cache already in use.
+     * While the cache is on, every get and contains writes to it, so reads are no longer
+     * read-only and must not run concurrently with each other (for instance under a shared read
+     * lock); LookupCache is not thread-safe.
+     * The cache probes with equals and hashCode, so keys that are equal must also compare equal
+     * (as with String, Integer or BigDecimal). Entries are cached under the key stored in the tree,
+     * so a key that compares equal without being equal to it, such as 1.00 for 1.0, always misses
+     * and goes to the tree instead of returning a value the tree has replaced.
+     * @return the cache, for its hit and miss statistics.
+     */
+    public LookupCache<Key, Value> enableCache(int capacity) {
+        if (cache == null) cache = new LookupCache<Key, Value>(capacity);
+        return cache;
+    }
+
+    /** Stops caching lookups and drops the cached entries. */
+    public void disableCache() {
+        cache = null;
+    }
+
+   /**
+    * Instrumentation.
+    */
+
+    /**
+     * Starts recording operation counts, comparisons, latencies and the height of this tree.
+     * Calling it again returns the metrics already being recorded.
+     * @return the metrics, which can also be registered for JMX.
+     */
+    public BSTMetrics enableMetrics() {
+        if (metrics == null) {
+            BSTMetrics m = new BSTMetrics();
+            m.height(height(root));
+            metrics = m;
+        }
+        return metrics;
+    }
+
+    /** Stops recording metrics; afterwards operations pay only a null check. */
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    /** Returns the metrics being recorded, or null if they are disabled. */
+    public BSTMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the height of the BST. With metrics enabled the height is tracked as keys are
+     * inserted, so this is O(1) unless keys were deleted since it was last computed.
+     */
+    public int height() {
+        BSTMetrics m = metrics;
+        if (m == null) return height(root);
+        if (!m.isHeightExact()) m.height(height(root));
+        return m.getHeight();
+    }
 
     /**
      * Returns the height of the BST at root x.
      * @param x The root to determine height of.
      */
     private int height(Node x) {
-        if (x == null) return -1;
-        return 1 + Math.max(height(x.left), height(x.right));
+        // count the levels of a level order traversal instead of recursing
+        int height = -1;
+        Queue<Node> level = new Queue<Node>();
+        if (x != null) level.enqueue(x);
+        while (!level.isEmpty()) {
+            height++;
+            for (int i = level.size(); i > 0; i--) {
+                Node t = level.dequeue();
+                if (t.left  != null) level.enqueue(t.left);
+                if (t.right != null) level.enqueue(t.right);
+            }
+        }
+        return height;
     }
 
 
@@ -378,46 +1074,673 @@ public class BST<Key extends Comparable<Key>, Value> {
         return keys;
     }
 
+   /**
+    * Bulk loading from sorted input.
+    */
+
+    /** Key ranges at most this long are built sequentially by parallelFromSorted. */
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+
+    /**
+     * Builds a perfectly balanced BST from keys in strictly increasing order in O(N) time,
+     * without descending the tree (or checking it) once per key as N calls to put would.
+     * @param keys Keys in strictly increasing order.
+     * @param values Values to associate with each key, none of them null.
+     * @return a new BST holding every key-value pair.
+     * @throws IllegalArgumentException if the arrays differ in length, a value is null, or the keys
+     *         are not strictly increasing.
+     */
+    public static <Key extends Comparable<Key>, Value> BST<Key, Value> fromSorted(Key[] keys, Value[] values) {
+        checkSorted(keys, values, false);
+        BST<Key, Value> bst = new BST<Key, Value>();
+        bst.root = bst.build(keys, values, 0, keys.length - 1);
+        return bst;
+    }
+
+    /**
+     * Same as fromSorted, but builds the left and right halves of large key ranges in parallel on
+     * the common fork-join pool.
+     */
+    public static <Key extends Comparable<Key>, Value> BST<Key, Value> parallelFromSorted(Key[] keys, Value[] values) {
+        checkSorted(keys, values, true);
+        BST<Key, Value> bst = new BST<Key, Value>();
+        bst.root = ForkJoinPool.commonPool().invoke(bst.new BuildTask(keys, values, 0, keys.length - 1));
+        return bst;
+    }
+
+    /** Validates the input of fromSorted and parallelFromSorted. */
+    private static <Key extends Comparable<Key>, Value> void checkSorted(Key[] keys, Value[] values, boolean parallel) {
+        if (keys.length != values.length)
+            throw new IllegalArgumentException("Number of keys and values differ");
+        IntStream indices = IntStream.range(0, keys.length);
+        if (parallel) indices = indices.parallel();
+        boolean valid = indices.allMatch(i -> values[i] != null && keys[i] != null
+                && (i == 0 || keys[i - 1].compareTo(keys[i]) < 0));
+        if (!valid)
+            throw new IllegalArgumentException("Keys must be strictly increasing with non-null values");
+    }
+
+    /**
+     * Returns the root of a perfectly balanced tree holding keys[lo..hi] and values[lo..hi].
+     * Recursion depth is logarithmic in the number of keys.
+     */
+    private Node build(Key[] keys, Value[] values, int lo, int hi) {
+        if (lo > hi) return null;
+        int mid = lo + (hi - lo) / 2;
+        Node x = newNode(keys[mid], values[mid], hi - lo + 1);
+        x.left  = build(keys, values, lo, mid - 1);
+        x.right = build(keys, values, mid + 1, hi);
+        if (monoid != null) updateAgg(x);
+        return x;
+    }
+
+    /** Builds keys[lo..hi], forking the left half while it builds the right half itself. */
+    private class BuildTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+        private final Key[] keys;
+        private final Value[] values;
+        private final int lo, hi;
+
+        public BuildTask(Key[] keys, Value[] values, int lo, int hi) {
+            this.keys = keys;
+            this.values = values;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Node compute() {
+            if (hi - lo + 1 <= PARALLEL_BUILD_THRESHOLD) return build(keys, values, lo, hi);
+            int mid = lo + (hi - lo) / 2;
+            Node x = newNode(keys[mid], values[mid], hi - lo + 1);
+            BuildTask left = new BuildTask(keys, values, lo, mid - 1);
+            left.fork();
+            x.right = new BuildTask(keys, values, mid + 1, hi).compute();
+            x.left  = left.join();
+            if (monoid != null) updateAgg(x);
+            return x;
+        }
+    }
+
+   /**
+    * Sorted batch operations.
+    */
+
+    /**
+     * Inserts (or updates) a batch of key-value pairs whose keys are in strictly increasing order.
+     * Rather than descending from the root once per key, the batch is merged into the tree in one
+     * walk: at every node the remaining keys are split by binary search into the part that belongs
+     * to the left subtree and the part that belongs to the right one, so the shared upper levels are
+     * visited once for the whole batch, and keys that land in an empty subtree are attached as a
+     * balanced subtree. Each touched node has its subtree count recomputed exactly once.
+     * @throws IllegalArgumentException if the arrays differ in length, a value is null, or the keys
+     *         are not strictly increasing.
+     */
+    public void putAll(Key[] sortedKeys, Value[] values) {
+        checkSorted(sortedKeys, values, false);
+        if (sortedKeys.length == 0) return;
+
+        if (root == null) {
+            root = build(sortedKeys, values, 0, sortedKeys.length - 1);
+            if (metrics != null) metrics.invalidateHeight();
+            assert checkPaths(sortedKeys);
+            return;
+        }
+
+        // top-down pass: route slices of the batch to subtrees, remembering every touched node
+        ArrayList<Node> touched = new ArrayList<Node>();
+        ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+        int[] slices = new int[16];     // lo, hi pairs of the slices routed to the nodes on the stack
+        int depth = 0;
+        nodes.push(root);
+        slices[depth++] = 0;
+        slices[depth++] = sortedKeys.length - 1;
+        while (!nodes.isEmpty()) {
+            Node x = nodes.pop();
+            int hi = slices[--depth];
+            int lo = slices[--depth];
+            touched.add(x);
+
+            int split = search(sortedKeys, lo, hi, x.key);
+            int rightLo = split;
+            if (split <= hi && sortedKeys[split].compareTo(x.key) == 0) {
+                x.val = values[split];
+                if (cache != null) cache.replace(x.key, x.val);
+                rightLo = split + 1;
+            }
+
+            // left slice is [lo, split - 1], right slice is [rightLo, hi]
+            if (lo <= split - 1) {
+                if (x.left == null) x.left = build(sortedKeys, values, lo, split - 1);
+                else {
+                    if (depth + 4 > slices.length) slices = Arrays.copyOf(slices, 2 * slices.length);
+                    nodes.push(x.left);
+                    slices[depth++] = lo;
+                    slices[depth++] = split - 1;
+                }
+            }
+            if (rightLo <= hi) {
+                if (x.right == null) x.right = build(sortedKeys, values, rightLo, hi);
+                else {
+                    if (depth + 4 > slices.length) slices = Arrays.copyOf(slices, 2 * slices.length);
+                    nodes.push(x.right);
+                    slices[depth++] = rightLo;
+                    slices[depth++] = hi;
+                }
+            }
+        }
+
+        // bottom-up pass: children were touched after their parents, so fix counts in reverse
+        for (int i = touched.size() - 1; i >= 0; i--) {
+            Node x = touched.get(i);
+            x.N = size(x.left) + size(x.right) + 1;
+            if (monoid != null) updateAgg(x);
+        }
+        if (metrics != null) metrics.invalidateHeight();
+        assert checkPaths(sortedKeys);
+    }
+
+    /**
+     * Looks up a batch of keys in strictly increasing order in one merged walk of the tree, like
+     * putAll, instead of one descent from the root per key.
+     * @return the value of each key in the same order as sortedKeys, null for keys not in the tree.
+     * @throws IllegalArgumentException if the keys are not strictly increasing.
+     */
+    public Iterable<Value> getAll(Key[] sortedKeys) {
+        for (int i = 1; i < sortedKeys.length; i++)
+            if (sortedKeys[i - 1].compareTo(sortedKeys[i]) >= 0)
+                throw new IllegalArgumentException("Keys must be strictly increasing");
+
+        Object[] found = new Object[sortedKeys.length];
+        ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+        int[] slices = new int[16];
+        int depth = 0;
+        if (root != null && sortedKeys.length > 0) {
+            nodes.push(root);
+            slices[depth++] = 0;
+            slices[depth++] = sortedKeys.length - 1;
+        }
+        while (!nodes.isEmpty()) {
+            Node x = nodes.pop();
+            int hi = slices[--depth];
+            int lo = slices[--depth];
+
+            int split = search(sortedKeys, lo, hi, x.key);
+            int rightLo = split;
+            if (split <= hi && sortedKeys[split].compareTo(x.key) == 0) {
+                found[split] = x.val;
+                rightLo = split + 1;
+            }
+            if (depth + 4 > slices.length) slices = Arrays.copyOf(slices, 2 * slices.length);
+            if (x.left != null && lo <= split - 1) {
+                nodes.push(x.left);
+                slices[depth++] = lo;
+                slices[depth++] = split - 1;
+            }
+            if (x.right != null && rightLo <= hi) {
+                nodes.push(x.right);
+                slices[depth++] = rightLo;
+                slices[depth++] = hi;
+            }
+        }
+
+        Queue<Value> values = new Queue<Value>(found.length);
+        for (Object val : found) {
+            @SuppressWarnings("unchecked")
+            Value v = (Value) val;
+            values.enqueue(v);
+        }
+        return values;
+    }
+
+    /** Returns the index of the first key in keys[lo..hi] not less than key, or hi + 1 if none. */
+    private static <Key extends Comparable<Key>> int search(Key[] keys, int lo, int hi, Key key) {
+        hi++;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) lo = mid + 1;
+            else                              hi = mid;
+        }
+        return lo;
+    }
+
+   /**
+    * Join-based set operations.
+    *
+    * These follow Blelloch, Ferizovic and Sun, "Just Join for Parallel Ordered Sets": everything is
+    * built from join, which links two trees and a middle node while restoring weight balance
+    * (using the subtree counts as weights), and split, which cuts a tree at a key with a sequence
+    * of joins. union, intersection and difference recurse on the root of one tree and the two
+    * halves of the other split at that root, solving the halves in parallel on the fork-join pool
+    * for large inputs, for O(m log(n/m + 1)) work on balanced trees of sizes m <= n. They reuse the
+    * nodes of both trees, so the tree passed as an argument is left empty.
+    */
+
+    /** Subproblems with at most this many keys in both trees are solved sequentially. */
+    private static final int PARALLEL_SET_THRESHOLD = 1 << 13;
+
+    /** Balance parameter: each side of a balanced node weighs at least ALPHA of the whole */
+    private static final double ALPHA = 0.29;
+
+    /** The set operation a SetTask performs */
+    private enum SetOperation { UNION, INTERSECTION, DIFFERENCE }
+
+    /** Result of a split: the trees of smaller and larger keys, and the node of the key itself */
+    private class Split {
+        private Node left, mid, right;
+    }
+
+    /** Weight of a subtree: its size plus one */
+    private int weight(Node x) {
+        return size(x) + 1;
+    }
+
+    /** Are subtrees of weights a and b balanced against each other? */
+    private static boolean balanced(long a, long b) {
+        return a >= ALPHA * (a + b) && b >= ALPHA * (a + b);
+    }
+
+    /** Recomputes the count (and aggregate) of x from its children. */
+    private Node update(Node x) {
+        x.N = size(x.left) + size(x.right) + 1;
+        if (monoid != null) updateAgg(x);
+        return x;
+    }
+
+    private Node rotateLeft(Node x) {
+        Node t = x.right;
+        x.right = t.left;
+        t.left = x;
+        update(x);
+        return update(t);
+    }
+
+    private Node rotateRight(Node x) {
+        Node t = x.left;
+        x.left = t.right;
+        t.right = x;
+        update(x);
+        return update(t);
+    }
+
+    /**
+     * Returns a tree holding left, then the node m, then right, where every key in left is less
+     * than m's key and every key in right is greater. The heavier side's spine is walked down to a
+     * subtree that balances the lighter side, m is hung there, and the path back up is rebalanced
+     * with single or double rotations, in O(log(heavier / lighter)) steps.
+     */
+    private Node join(Node left, Node m, Node right) {
+        if (weight(left) > weight(right) && !balanced(weight(left), weight(right))) return joinRight(left, m, right);
+        if (weight(right) > weight(left) && !balanced(weight(left), weight(right))) return joinLeft(left, m, right);
+        m.left = left;
+        m.right = right;
+        return update(m);
+    }
+
+    /** join for a left tree that is too heavy: m goes down its right spine. */
+    private Node joinRight(Node left, Node m, Node right) {
+        ArrayDeque<Node> spine = new ArrayDeque<Node>();
+        Node t = left;
+        while (weight(t) > weight(right) && !balanced(weight(t), weight(right))) {
+            spine.push(t);
+            t = t.right;
+        }
+        m.left = t;
+        m.right = right;
+        Node cur = update(m);
+        while (!spine.isEmpty()) {
+            Node p = spine.pop();
+            p.right = cur;
+            int wl = weight(p.left), wc = weight(cur);
+            if (wc <= wl || balanced(wl, wc)) cur = update(p);
+            else if (cur.left == null || balanced(wl, weight(cur.left)) && balanced(wl + weight(cur.left), weight(cur.right)))
+                cur = rotateLeft(p);
+            else {
+                p.right = rotateRight(cur);
+                cur = rotateLeft(p);
+            }
+        }
+        return cur;
+    }
+
+    /** join for a right tree that is too heavy: m goes down its left spine. */
+    private Node joinLeft(Node left, Node m, Node right) {
+        ArrayDeque<Node> spine = new ArrayDeque<Node>();
+        Node t = right;
+        while (weight(t) > weight(left) && !balanced(weight(left), weight(t))) {
+            spine.push(t);
+            t = t.left;
+        }
+        m.left = left;
+        m.right = t;
+        Node cur = update(m);
+        while (!spine.isEmpty()) {
+            Node p = spine.pop();
+            p.left = cur;
+            int wr = weight(p.right), wc = weight(cur);
+            if (wc <= wr || balanced(wc, wr)) cur = update(p);
+            else if (cur.right == null || balanced(weight(cur.right), wr) && balanced(weight(cur.left), weight(cur.right) + wr))
+                cur = rotateRight(p);
+            else {
+                p.left = rotateLeft(cur);
+                cur = rotateRight(p);
+            }
+        }
+        return cur;
+    }
+
+    /** Joins two trees whose keys are all smaller in left than in right, with no middle key. */
+    private Node join2(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        // take the maximum of left out to serve as the middle node
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        Node max = left;
+        for (; max.right != null; max = max.right) path.push(max);
+        if (path.isEmpty()) left = max.left;
+        else {
+            path.peek().right = max.left;
+            while (!path.isEmpty()) update(path.pop());
+        }
+        return join(left, max, right);
+    }
+
+    /**
+     * Splits the tree rooted at t at key: walks down the search path, then back up joining each
+     * node on the path with its other subtree onto the side it belongs to.
+     */
+    private Split split(Node t, Key key) {
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        Split split = new Split();
+        while (t != null) {
+            int cmp = key.compareTo(t.key);
+            if (cmp == 0) {
+                split.mid = t;
+                split.left = t.left;
+                split.right = t.right;
+                t.left = t.right = null;
+                update(t);
+                break;
+            }
+            path.push(t);
+            t = (cmp < 0) ? t.left : t.right;
+        }
+        while (!path.isEmpty()) {
+            Node p = path.pop();
+            if (key.compareTo(p.key) < 0) split.right = join(split.right, p, p.right);
+            else                          split.left  = join(p.left, p, split.left);
+        }
+        return split;
+    }
+
+    /**
+     * Removes every key greater than or equal to key from this tree and returns them as a new tree,
+     * in O(height) time.
+     */
+    public BST<Key, Value> split(Key key) {
+        Split split = split(root, key);
+        root = split.left;
+        BST<Key, Value> tail = new BST<Key, Value>(monoid);
+        if (split.mid != null) tail.root = join(null, split.mid, split.right);
+        else                   tail.root = split.right;
+        changedByBulkOperation();
+        return tail;
+    }
+
+    /**
+     * Returns a tree holding the entries of left, the given key and value, and the entries of right,
+     * emptying left and right. Runs in O(log(larger / smaller)) time on balanced trees.
+     * @throws IllegalArgumentException if some key of left is not less than key, some key of right
+     *         is not greater, or the trees aggregate with different monoids.
+     */
+    public static <Key extends Comparable<Key>, Value> BST<Key, Value> join(BST<Key, Value> left, Key key, Value val,
+                                                                           BST<Key, Value> right) {
+        if (val == null) throw new IllegalArgumentException("Value must not be null");
+        if (left.monoid != right.monoid) throw new IllegalArgumentException("Trees aggregate with different monoids");
+        if (!left.isEmpty() && left.max().compareTo(key) >= 0 || !right.isEmpty() && right.min().compareTo(key) <= 0)
+            throw new IllegalArgumentException("Keys of left must be less than key, keys of right greater");
+        BST<Key, Value> joined = new BST<Key, Value>(left.monoid);
+        joined.root = joined.join(left.root, joined.newNode(key, val, 1), right.root);
+        left.root = null;
+        right.root = null;
+        left.changedByBulkOperation();
+        right.changedByBulkOperation();
+        return joined;
+    }
+
+    /**
+     * Adds every entry of other to this tree, emptying other. Where both trees hold a key the value
+     * from other wins, as when applying a delta to a base table.
+     */
+    public void union(BST<Key, Value> other) {
+        setOperation(SetOperation.UNION, other);
+    }
+
+    /** Keeps only the keys of this tree that other also holds, with their values here; empties other. */
+    public void intersection(BST<Key, Value> other) {
+        setOperation(SetOperation.INTERSECTION, other);
+    }
+
+    /** Removes every key that other holds from this tree, emptying other. */
+    public void difference(BST<Key, Value> other) {
+        setOperation(SetOperation.DIFFERENCE, other);
+    }
+
+    private void setOperation(SetOperation op, BST<Key, Value> other) {
+        if (other == this) {
+            if (op == SetOperation.DIFFERENCE) root = null;
+            changedByBulkOperation();
+            return;
+        }
+        if (monoid != other.monoid) throw new IllegalArgumentException("Trees aggregate with different monoids");
+        int total = size() + other.size();
+        int maxDepth = 3 * (32 - Integer.numberOfLeadingZeros(total)) + 16;
+        if (total > PARALLEL_SET_THRESHOLD)
+            root = ForkJoinPool.commonPool().invoke(new SetTask(op, root, other.root, 0, maxDepth));
+        else
+            root = setOperation(op, root, other.root, 0, maxDepth);
+        other.root = null;
+        changedByBulkOperation();
+        other.changedByBulkOperation();
+    }
+
+    /**
+     * Applies op to the trees rooted at a and b, splitting b at a's root and recursing on both
+     * halves, in parallel for large subproblems. Input trees much deeper than balanced ones are
+     * flattened and merged instead once the recursion passes maxDepth, which bounds the stack.
+     */
+    private Node setOperation(SetOperation op, Node a, Node b, int depth, int maxDepth) {
+        if (a == null) return (op == SetOperation.UNION) ? b : null;
+        if (b == null) return (op == SetOperation.INTERSECTION) ? null : a;
+        if (depth > maxDepth) return merge(op, a, b);
+
+        Split split = split(b, a.key);
+        if (op == SetOperation.UNION && split.mid != null) a.val = split.mid.val;
+        Node aLeft = a.left, aRight = a.right;
+        Node left, right;
+        if (size(a) + size(b) > PARALLEL_SET_THRESHOLD) {
+            SetTask task = new SetTask(op, aLeft, split.left, depth + 1, maxDepth);
+            task.fork();
+            right = setOperation(op, aRight, split.right, depth + 1, maxDepth);
+            left = task.join();
+        }
+        else {
+            left = setOperation(op, aLeft, split.left, depth + 1, maxDepth);
+            right = setOperation(op, aRight, split.right, depth + 1, maxDepth);
+        }
+
+        boolean keep = (op == SetOperation.UNION)
+                    || (op == SetOperation.INTERSECTION) == (split.mid != null);
+        if (keep) return join(left, a, right);
+        else      return join2(left, right);
+    }
+
+    /** Computes op on the nodes of a and b by a linear merge of their in-order sequences. */
+    private Node merge(SetOperation op, Node a, Node b) {
+        ArrayList<Node> as = flatten(a), bs = flatten(b);
+        ArrayList<Node> merged = new ArrayList<Node>(as.size() + bs.size());
+        int i = 0, j = 0;
+        while (i < as.size() || j < bs.size()) {
+            int cmp;
+            if      (i == as.size()) cmp = 1;
+            else if (j == bs.size()) cmp = -1;
+            else                     cmp = as.get(i).key.compareTo(bs.get(j).key);
+            if (cmp < 0) {
+                if (op != SetOperation.INTERSECTION) merged.add(as.get(i));
+                i++;
+            }
+            else if (cmp > 0) {
+                if (op == SetOperation.UNION) merged.add(bs.get(j));
+                j++;
+            }
+            else {
+                if (op == SetOperation.UNION) as.get(i).val = bs.get(j).val;
+                if (op != SetOperation.DIFFERENCE) merged.add(as.get(i));
+                i++;
+                j++;
+            }
+        }
+        return link(merged, 0, merged.size() - 1);
+    }
+
+    /** Returns the nodes of the tree rooted at x in key order. */
+    private ArrayList<Node> flatten(Node x) {
+        ArrayList<Node> nodes = new ArrayList<Node>(size(x));
+        InOrderWalker walker = new InOrderWalker(x, null, null);
+        while (walker.hasNext()) nodes.add(walker.nextNode());
+        return nodes;
+    }
+
+    /** Links nodes[lo..hi], in key order, into a perfectly balanced tree and returns its root. */
+    private Node link(ArrayList<Node> nodes, int lo, int hi) {
+        if (lo > hi) return null;
+        int mid = lo + (hi - lo) / 2;
+        Node x = nodes.get(mid);
+        x.left = link(nodes, lo, mid - 1);
+        x.right = link(nodes, mid + 1, hi);
+        return update(x);
+    }
+
+    /** Runs setOperation on a fork-join worker. */
+    private class SetTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+        private final SetOperation op;
+        private final Node a, b;
+        private final int depth, maxDepth;
+
+        public SetTask(SetOperation op, Node a, Node b, int depth, int maxDepth) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        protected Node compute() {
+            return setOperation(op, a, b, depth, maxDepth);
+        }
+    }
+
+    /** Drops cached lookups and the tracked height after the tree was restructured wholesale. */
+    private void changedByBulkOperation() {
+        if (cache != null) cache.clear();
+        if (metrics != null) metrics.invalidateHeight();
+    }
+
   /**
    *  Check integrity of BST data structure
+   *
+   *  Mutations assert checkPath on the part of the tree they changed, which costs O(height) and is
+   *  cheap enough to leave -ea on under load. verify() checks the whole tree in O(N) on demand.
    */
-    private boolean check() {
-        if (!isBST())            StdOut.println("Not in symmetric order");
-        if (!isSizeConsistent()) StdOut.println("Subtree counts not consistent");
-        if (!isRankConsistent()) StdOut.println("Ranks not consistent");
-        return isBST() && isSizeConsistent() && isRankConsistent();
-    }
-
-    // does this binary tree satisfy symmetric order?
-    // Note: this test also ensures that data structure is a binary tree since order is strict
-    private boolean isBST() {
-        return isBST(root, null, null);
-    }
-
-    // is the tree rooted at x a BST with all keys strictly between min and max
-    // (if min or max is null, treat as empty constraint)
-    // Credit: Bob Dondero's elegant solution
-    private boolean isBST(Node x, Key min, Key max) {
-        if (x == null) return true;
-        if (min != null && x.key.compareTo(min) <= 0) return false;
-        if (max != null && x.key.compareTo(max) >= 0) return false;
-        return isBST(x.left, min, x.key) && isBST(x.right, x.key, max);
-    } 
 
-    // are the size fields correct?
-    private boolean isSizeConsistent() { return isSizeConsistent(root); }
-    private boolean isSizeConsistent(Node x) {
-        if (x == null) return true;
-        if (x.N != size(x.left) + size(x.right) + 1) return false;
-        return isSizeConsistent(x.left) && isSizeConsistent(x.right);
-    } 
+    /**
+     * Checks every node on the search path of key, then, if key is present, the left spine of its
+     * right subtree (where a deletion takes a successor from): each node must lie strictly between
+     * the bounds set by its ancestors, be ordered against its children, and have a consistent count.
+     * @param key Key whose path to check; null checks nothing.
+     */
+    private boolean checkPath(Key key) {
+        if (key == null) return true;
+        Key min = null, max = null;
+        Node x = root;
+        boolean found = false;      // past key's node, so following the left spine of its right subtree
+        while (x != null) {
+            if (!checkNode(x, min, max)) return false;
+            int cmp = found ? -1 : key.compareTo(x.key);
+            if (cmp == 0) found = true;
+            if (cmp < 0) { max = x.key; x = x.left;  }
+            else         { min = x.key; x = x.right; }
+        }
+        return true;
+    }
+
+    /** Checks the keys of several paths, as after a batch update. */
+    private boolean checkPaths(Key[] keys) {
+        for (Key key : keys)
+            if (!checkPath(key)) return false;
+        return true;
+    }
+
+    /** Checks x against its bounds (null for none), its children's keys and its subtree count. */
+    private boolean checkNode(Node x, Key min, Key max) {
+        if (min != null && x.key.compareTo(min) <= 0
+         || max != null && x.key.compareTo(max) >= 0
+         || x.left  != null && x.left.key.compareTo(x.key)  >= 0
+         || x.right != null && x.right.key.compareTo(x.key) <= 0) {
+            StdOut.println("Not in symmetric order at " + x.key);
+            return false;
+        }
+        if (x.N != size(x.left) + size(x.right) + 1) {
+            StdOut.println("Subtree count not consistent at " + x.key);
+            return false;
+        }
+        return isAggConsistent(x);
+    }
+
+    /** Checks that the aggregate of x combines its children's aggregates and its own value. */
+    private boolean isAggConsistent(Node x) {
+        if (monoid == null) return true;
+        Value expected = monoid.combine(monoid.combine(agg(x.left), x.val), agg(x.right));
+        if (expected.equals(agg(x))) return true;
+        StdOut.println("Subtree aggregate not consistent at " + x.key);
+        return false;
+    }
 
-    // check that ranks are consistent
-    private boolean isRankConsistent() {
-        for (int i = 0; i < size(); i++)
-            if (i != rank(select(i))) return false;
-        for (Key key : keys())
-            if (key.compareTo(select(rank(key))) != 0) return false;
+    /**
+     * Verifies the whole tree in O(N) time with a single in-order walk: keys must be strictly
+     * increasing and every subtree count must equal the counts of its children plus one. Together
+     * these imply that rank and select are consistent.
+     * @return true if every invariant holds; otherwise prints the first violation and returns false.
+     */
+    public boolean verify() {
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        Key previous = null;
+        int visited = 0;
+        for (Node x = root; x != null; x = x.left) stack.push(x);
+        while (!stack.isEmpty()) {
+            Node x = stack.pop();
+            if (++visited > size()) {
+                StdOut.println("Subtree counts not consistent");     // or a node is reachable twice
+                return false;
+            }
+            if (previous != null && previous.compareTo(x.key) >= 0) {
+                StdOut.println("Not in symmetric order at " + x.key);
+                return false;
+            }
+            if (x.N != size(x.left) + size(x.right) + 1) {
+                StdOut.println("Subtree count not consistent at " + x.key);
+                return false;
+            }
+            if (!isAggConsistent(x)) return false;
+            previous = x.key;
+            for (Node t = x.right; t != null; t = t.left) stack.push(t);
+        }
+        if (visited != size()) {
+            StdOut.println("Subtree counts not consistent");
+            return false;
+        }
         return true;
     }
 
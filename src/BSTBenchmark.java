@@ -0,0 +1,362 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac BSTBenchmark.java
+ *  Execution:    java BSTBenchmark [operations...] [sizes...]
+ *  Dependencies: BST.java
+ *
+ *  A benchmark harness for the BST operations: get, put, delete, floor, ceiling, rank, select,
+ *  keys(lo, hi) and levelOrder, each over Long and String keys loaded and accessed in random,
+ *  sorted, reverse-sorted and Zipfian order, at every tree size given on the command line
+ *  (1000 to 100000 keys by default; larger sizes such as 100000000 need a matching -Xmx).
+ *
+ *  For every combination it reports
+ *      throughput      operations per second over several timed iterations, after warmup
+ *      latency         p50, p99 and p99.9, timing each operation of a separate iteration
+ *      allocation      bytes allocated per operation by the benchmark thread
+ *
+ *  Sorted and reverse-sorted loads degenerate the tree into a linked list, so building one costs
+ *  O(N^2); those combinations are skipped above SKEWED_LIMIT keys, and their read workloads run
+ *  fewer operations per iteration since each one walks O(N) nodes.
+ *
+ *  This is a plain Java harness rather than JMH since the project has no build tool to pull JMH
+ *  in. It defends against the usual pitfalls by hand (warmup iterations, a result sink so that
+ *  no work is dead code, fresh trees for destructive workloads) but cannot fork a JVM per
+ *  benchmark, so run a single workload (java BSTBenchmark get 100000) when comparing numbers.
+ *
+ *  % java BSTBenchmark get 1000
+ *  op          keys    order          size        ops/s    p50 ns    p99 ns  p99.9 ns     B/op
+ *  get         Long    RANDOM         1000      9449831       144       213       345      0.0
+ *  get         Long    SORTED         1000       656205      1563      7480     12702      0.0
+ *  ...
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class BSTBenchmark {
+
+    /** Orders in which keys are loaded into the tree and then accessed */
+    public enum Distribution { RANDOM, SORTED, REVERSE, ZIPFIAN }
+
+    /** Largest tree built from sorted or reverse-sorted keys */
+    private static final int SKEWED_LIMIT = 10000;
+
+    /** Operations (times tree size) per iteration of the read workloads on a degenerate tree */
+    private static final int SKEWED_READ_WORK = 20000000;
+
+    /** Operations per iteration of the read workloads */
+    private static final int READ_OPS = 200000;
+
+    /** Width of the ranges scanned by the keys(lo, hi) workload */
+    private static final int RANGE = 100;
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    /** Skew of the Zipfian distribution, as used by YCSB */
+    private static final double ZIPF_THETA = 0.99;
+
+    /**
+     * Keeps results reachable so the JIT cannot drop the work that produced them. Operations
+     * return their results to the measuring loop, which sums them in a local and publishes the
+     * sum here once per iteration, so the timed loop pays no volatile write per operation.
+     */
+    private static volatile long sink;
+
+    /** Maps key indices to keys that sort in the same order as the indices */
+    private interface Keys<Key extends Comparable<Key>> {
+        String name();
+        Key key(int i);
+
+        /** A key that is not in the tree, between key(i) and key(i + 1) */
+        Key between(int i);
+    }
+
+    private static final Keys<Long> LONG_KEYS = new Keys<Long>() {
+        public String name()          { return "Long";          }
+        public Long key(int i)        { return 2L * i;          }
+        public Long between(int i)    { return 2L * i + 1;      }
+    };
+
+    private static final Keys<String> STRING_KEYS = new Keys<String>() {
+        public String name()          { return "String";                          }
+        public String key(int i)      { return String.format("key%010d", i);      }
+        public String between(int i)  { return String.format("key%010d~", i);     }
+    };
+
+    /** One benchmarked operation, applied to the i-th index of the access order */
+    private interface Workload {
+        /** Prepares a tree for one iteration, untimed */
+        void setUp();
+
+        /** Number of operations in one iteration */
+        int ops();
+
+        /** Runs operation i and returns something derived from its result, for the sink */
+        long op(int i);
+    }
+
+    /** The result of one benchmark */
+    private static class Result {
+        double opsPerSecond;
+        long p50, p99, p999;
+        double bytesPerOp;
+    }
+
+   /**
+    * Key streams
+    */
+
+    /** Returns the order in which the key indices 0..n-1 are put into the tree. */
+    private static int[] loadOrder(Distribution distribution, int n, Random random) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = (distribution == Distribution.REVERSE) ? n - 1 - i : i;
+        if (distribution == Distribution.RANDOM || distribution == Distribution.ZIPFIAN)
+            shuffle(order, random);
+        return order;
+    }
+
+    /** Returns ops key indices in [0, n) in the order the read workloads access them. */
+    private static int[] accessOrder(Distribution distribution, int n, int ops, Random random) {
+        int[] order = new int[ops];
+        switch (distribution) {
+            case SORTED:  for (int i = 0; i < ops; i++) order[i] = i % n;           break;
+            case REVERSE: for (int i = 0; i < ops; i++) order[i] = n - 1 - i % n;   break;
+            case RANDOM:  for (int i = 0; i < ops; i++) order[i] = random.nextInt(n); break;
+            case ZIPFIAN:
+                // scatter the popular ranks over the key space so hot keys are not all neighbours
+                int[] scatter = loadOrder(Distribution.RANDOM, n, random);
+                Zipf zipf = new Zipf(n, ZIPF_THETA);
+                for (int i = 0; i < ops; i++) order[i] = scatter[zipf.next(random)];
+                break;
+        }
+        return order;
+    }
+
+    private static void shuffle(int[] a, Random random) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    /** Zipfian ranks in [0, n) by Gray et al.'s method, O(n) to set up and O(1) per sample */
+    private static class Zipf {
+        private final int n;
+        private final double theta, alpha, zetan, eta;
+
+        public Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double zeta = 0;
+            for (int i = 1; i <= n; i++) zeta += 1 / Math.pow(i, theta);
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            this.zetan = zeta;
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zeta);
+        }
+
+        public int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, theta)) return Math.min(1, n - 1);
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+   /**
+    * Workloads
+    */
+
+    /** Builds a tree by putting the keys of load in order. */
+    private static <Key extends Comparable<Key>> BST<Key, Integer> load(List<Key> present, int[] load) {
+        BST<Key, Integer> bst = new BST<Key, Integer>();
+        for (int i : load) bst.put(present.get(i), i);
+        return bst;
+    }
+
+    /**
+     * Returns the workload with the given name. Keys are created up front so that the timed
+     * operations do not include formatting them.
+     * @param present key(i) for every index i.
+     * @param absent between(i) for every index i.
+     * @param tree Tree shared by the read workloads, loaded in the benchmark's order.
+     * @param load The load order, which put inserts and delete removes.
+     * @param access The access order of the read workloads.
+     */
+    private static <Key extends Comparable<Key>> Workload workload(String name, List<Key> present,
+            List<Key> absent, BST<Key, Integer> tree, int[] load, int[] access) {
+        int n = load.length;
+        switch (name) {
+            case "get":
+                return readOnly(access.length, i -> (tree.get(present.get(access[i])) != null) ? 1 : 0);
+            case "floor":
+                return readOnly(access.length, i -> tree.floor(absent.get(access[i])).hashCode());
+            case "ceiling":
+                return readOnly(access.length, i -> tree.ceiling(present.get(access[i])).hashCode());
+            case "rank":
+                return readOnly(access.length, i -> tree.rank(present.get(access[i])));
+            case "select":
+                return readOnly(access.length, i -> tree.select(access[i]).hashCode());
+            case "keys":
+                return readOnly(access.length / RANGE, i -> {
+                    int lo = access[i];
+                    long sum = 0;
+                    for (Key key : tree.keys(present.get(lo), present.get(Math.min(n - 1, lo + RANGE - 1))))
+                        sum += key.hashCode();
+                    return sum;
+                });
+            case "levelOrder":
+                return readOnly(1, i -> {
+                    long sum = 0;
+                    for (Key key : tree.levelOrder()) sum += key.hashCode();
+                    return sum;
+                });
+            case "put":
+                return new Workload() {
+                    private BST<Key, Integer> bst;
+                    public void setUp()  { bst = new BST<Key, Integer>(); }
+                    public int ops()     { return n; }
+                    public long op(int i) { bst.put(present.get(load[i]), i); return 0; }
+                };
+            case "delete":
+                return new Workload() {
+                    private BST<Key, Integer> bst;
+                    public void setUp()  { bst = load(present, load); }
+                    public int ops()     { return n; }
+                    public long op(int i) { bst.delete(present.get(load[i])); return 0; }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    /** An operation on the shared tree, which needs no setting up */
+    private interface Read {
+        long op(int i);
+    }
+
+    private static Workload readOnly(int ops, Read read) {
+        return new Workload() {
+            public void setUp()   { }
+            public int ops()      { return ops; }
+            public long op(int i) { return read.op(i); }
+        };
+    }
+
+   /**
+    * Measurement
+    */
+
+    private static Result measure(Workload workload) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int w = 0; w < WARMUP_ITERATIONS; w++) {
+            workload.setUp();
+            long sum = 0;
+            for (int i = 0; i < workload.ops(); i++) sum += workload.op(i);
+            sink += sum;
+        }
+
+        // throughput and allocation over whole iterations
+        long nanos = 0, bytes = 0, ops = 0;
+        for (int m = 0; m < MEASURED_ITERATIONS; m++) {
+            workload.setUp();
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < workload.ops(); i++) sum += workload.op(i);
+            nanos += System.nanoTime() - start;
+            sink += sum;
+            bytes += threads.getThreadAllocatedBytes(thread) - allocated;
+            ops += workload.ops();
+        }
+
+        // latency distribution from one more iteration with every operation timed
+        workload.setUp();
+        long[] latencies = new long[workload.ops()];
+        long sum = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            long start = System.nanoTime();
+            sum += workload.op(i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        sink += sum;
+        Arrays.sort(latencies);
+
+        Result result = new Result();
+        result.opsPerSecond = ops * 1e9 / Math.max(1, nanos);
+        result.bytesPerOp = (double) bytes / ops;
+        result.p50  = percentile(latencies, 50);
+        result.p99  = percentile(latencies, 99);
+        result.p999 = percentile(latencies, 99.9);
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int i = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    /** Runs the named operations over one kind of key, for every distribution and size. */
+    private static <Key extends Comparable<Key>> void run(List<String> operations, Keys<Key> keys, int[] sizes) {
+        for (Distribution distribution : Distribution.values()) {
+            for (int n : sizes) {
+                boolean skewed = distribution == Distribution.SORTED || distribution == Distribution.REVERSE;
+                if (skewed && n > SKEWED_LIMIT) {
+                    System.out.printf("%-11s %-7s %-8s %10d  skipped: a degenerate tree takes O(N^2) to build%n",
+                            "*", keys.name(), distribution, n);
+                    continue;
+                }
+                Random random = new Random(n);
+                int[] load = loadOrder(distribution, n, random);
+                int reads = skewed ? Math.max(1000, Math.min(READ_OPS, SKEWED_READ_WORK / n)) : READ_OPS;
+                int[] access = accessOrder(distribution, n, reads, random);
+                List<Key> present = new ArrayList<Key>(n), absent = new ArrayList<Key>(n);
+                for (int i = 0; i < n; i++) {
+                    present.add(keys.key(i));
+                    absent.add(keys.between(i));
+                }
+                BST<Key, Integer> tree = load(present, load);
+                for (String operation : operations) {
+                    Result r = measure(workload(operation, present, absent, tree, load, access));
+                    System.out.printf("%-11s %-7s %-8s %10d %12.0f %9d %9d %9d %8.1f%n", operation, keys.name(),
+                            distribution, n, r.opsPerSecond, r.p50, r.p99, r.p999, r.bytesPerOp);
+                }
+            }
+        }
+    }
+
+    /**
+    * Benchmark client
+    * Arguments are operation names and tree sizes in any order; none means all of them.
+    */
+    public static void main(String[] args) {
+        List<String> operations = new ArrayList<String>();
+        List<Integer> sizeList = new ArrayList<Integer>();
+        for (String arg : args) {
+            if (arg.chars().allMatch(Character::isDigit)) sizeList.add(Integer.parseInt(arg));
+            else                                          operations.add(arg);
+        }
+        if (operations.isEmpty())
+            operations = Arrays.asList("get", "put", "delete", "floor", "ceiling", "rank", "select", "keys", "levelOrder");
+        if (sizeList.isEmpty())
+            sizeList = Arrays.asList(1000, 10000, 100000);
+        int[] sizes = sizeList.stream().mapToInt(Integer::intValue).toArray();
+
+        System.out.printf("%-11s %-7s %-8s %10s %12s %9s %9s %9s %8s%n",
+                "op", "keys", "order", "size", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "B/op");
+        run(operations, LONG_KEYS, sizes);
+        run(operations, STRING_KEYS, sizes);
+        System.out.println("(checksum " + sink + ")");
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac BSTMetrics.java
+ *  Execution:    java BSTMetrics
+ *  Dependencies: BST.java BSTMetricsMXBean.java
+ *
+ *  Operation counts, comparisons and latency histograms for one BST, enabled with
+ *  BST.enableMetrics(). A tree without metrics pays a single null check per operation.
+ *
+ *  Counters are LongAdders, which stripe updates across cells so that recording never contends,
+ *  and latencies go into power-of-two histograms (bucket b counts operations that took less than
+ *  2^b nanoseconds but at least 2^(b-1)), so percentiles are accurate to within a factor of two.
+ *  Comparisons are the compareTo calls the operation actually made, counted by the tree as it
+ *  descends and reported once per operation: a put of a new key descends twice (once to find
+ *  the key missing, once to link it in), a get answered by the lookup cache makes none, and
+ *  select, which compares no keys, counts the subtree sizes it compares instead.
+ *
+ *  The height is maintained by the tree as keys are put one at a time; after a deletion or a
+ *  batch insert the reported height may be stale until the tree's height() is next called, which
+ *  recomputes it.
+ *
+ *  The metrics can be read with snapshot() or, once register() has been called, over JMX.
+ *
+ *  % java BSTMetrics
+ *  height: 21
+ *  GET: 1000 ops, 12.9 comparisons/op, p50 < 1024 ns, p99 < 4096 ns
+ *  PUT: 1000 ops, 21.3 comparisons/op, p50 < 1024 ns, p99 < 16384 ns
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class BSTMetrics implements BSTMetricsMXBean {
+
+    /** The operations that are measured */
+    public enum Operation { GET, PUT, DELETE, DELETE_MIN, DELETE_MAX, FLOOR, CEILING, RANK, SELECT }
+
+    /** Number of latency buckets, enough for any long number of nanoseconds */
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] counts = new LongAdder[Operation.values().length];
+    private final LongAdder[] comparisons = new LongAdder[Operation.values().length];
+    private final LongAdder[][] latencies = new LongAdder[Operation.values().length][BUCKETS];
+
+    /** Height of the tree, possibly stale while heightExact is false */
+    private volatile int height = -1;
+    private volatile boolean heightExact = true;
+
+    BSTMetrics() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            comparisons[i] = new LongAdder();
+            for (int b = 0; b < BUCKETS; b++)
+                latencies[i][b] = new LongAdder();
+        }
+    }
+
+   /**
+    * Recording, called by the tree
+    */
+
+    /** Records one operation that took the given time and made the given number of comparisons. */
+    void record(Operation op, long nanos, int compares) {
+        int i = op.ordinal();
+        counts[i].increment();
+        comparisons[i].add(compares);
+        latencies[i][bucket(nanos)].increment();
+    }
+
+    /** Returns the histogram bucket for a latency: the number of bits needed to write it. */
+    private static int bucket(long nanos) {
+        if (nanos <= 0) return 0;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    /** A key was inserted at the given depth (the root is at depth 0). */
+    void inserted(int depth) {
+        if (depth > height) height = depth;
+    }
+
+    /** Keys were deleted or batch inserted, so the height must be recomputed. */
+    void invalidateHeight() {
+        heightExact = false;
+    }
+
+    /** Publishes the exact height, as computed by the tree. */
+    void height(int height) {
+        this.height = height;
+        this.heightExact = true;
+    }
+
+    boolean isHeightExact() {
+        return heightExact;
+    }
+
+   /**
+    * Reading
+    */
+
+    /** Returns the height of the tree, as of the last computation if keys were deleted since. */
+    public int getHeight() {
+        return height;
+    }
+
+    public long count(Operation op) {
+        return counts[op.ordinal()].sum();
+    }
+
+    public long getTotalOperations() {
+        long total = 0;
+        for (LongAdder count : counts) total += count.sum();
+        return total;
+    }
+
+    /** Returns the average number of compareTo calls made by the operation, or 0 if it never ran. */
+    public double comparisonsPerOperation(Operation op) {
+        long n = count(op);
+        if (n == 0) return 0;
+        return (double) comparisons[op.ordinal()].sum() / n;
+    }
+
+    /**
+     * Returns an upper bound (within a factor of two) on the given latency percentile.
+     * @param percentile between 0 and 100.
+     * @return the latency in nanoseconds, or 0 if the operation never ran.
+     */
+    public long latencyPercentile(Operation op, double percentile) {
+        return percentile(histogram(op), percentile);
+    }
+
+    private long[] histogram(Operation op) {
+        long[] histogram = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++)
+            histogram[b] = latencies[op.ordinal()][b].sum();
+        return histogram;
+    }
+
+    private static long percentile(long[] histogram, double percentile) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be in [0, 100]");
+        long total = 0;
+        for (long n : histogram) total += n;
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram[b];
+            if (seen >= Math.max(1, target)) return (b == BUCKETS - 1) ? Long.MAX_VALUE : 1L << b;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Operation op : Operation.values()) map.put(op.name(), count(op));
+        return map;
+    }
+
+    public Map<String, Double> getComparisonsPerOperation() {
+        Map<String, Double> map = new LinkedHashMap<String, Double>();
+        for (Operation op : Operation.values()) map.put(op.name(), comparisonsPerOperation(op));
+        return map;
+    }
+
+    public Map<String, Long> getMedianLatencyNanos() {
+        return latencies(50);
+    }
+
+    public Map<String, Long> getP99LatencyNanos() {
+        return latencies(99);
+    }
+
+    private Map<String, Long> latencies(double percentile) {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Operation op : Operation.values()) map.put(op.name(), latencyPercentile(op, percentile));
+        return map;
+    }
+
+    /** Clears every counter and histogram; the height is kept. */
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i].reset();
+            comparisons[i].reset();
+            for (LongAdder bucket : latencies[i]) bucket.reset();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as "BST:type=Metrics,name=<name>".
+     * @return the name they were registered under.
+     * @throws IllegalArgumentException if the name is invalid or already taken.
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("BST:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+        catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register BST metrics as " + name, e);
+        }
+    }
+
+    /** Returns a consistent-enough copy of every metric, for logging or export. */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** An immutable copy of the metrics at one point in time */
+    public static class Snapshot {
+        private final int height;
+        private final Map<Operation, Long> counts = new EnumMap<Operation, Long>(Operation.class);
+        private final Map<Operation, Long> comparisons = new EnumMap<Operation, Long>(Operation.class);
+        private final Map<Operation, long[]> histograms = new EnumMap<Operation, long[]>(Operation.class);
+
+        private Snapshot(BSTMetrics metrics) {
+            height = metrics.height;
+            for (Operation op : Operation.values()) {
+                counts.put(op, metrics.count(op));
+                comparisons.put(op, metrics.comparisons[op.ordinal()].sum());
+                histograms.put(op, metrics.histogram(op));
+            }
+        }
+
+        public int height()                { return height;          }
+        public long count(Operation op)    { return counts.get(op);  }
+
+        public double comparisonsPerOperation(Operation op) {
+            long n = counts.get(op);
+            if (n == 0) return 0;
+            return (double) comparisons.get(op) / n;
+        }
+
+        public long latencyPercentile(Operation op, double percentile) {
+            return percentile(histograms.get(op), percentile);
+        }
+
+        /** One line per operation that ran: count, comparisons per operation and latency percentiles */
+        public String toString() {
+            StringBuilder s = new StringBuilder("height: " + height);
+            for (Operation op : Operation.values()) {
+                if (count(op) == 0) continue;
+                s.append(String.format("%n%s: %d ops, %.1f comparisons/op, p50 < %d ns, p99 < %d ns",
+                        op, count(op), comparisonsPerOperation(op),
+                        latencyPercentile(op, 50), latencyPercentile(op, 99)));
+            }
+            return s.toString();
+        }
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+        BST<Integer, Integer> bst = new BST<Integer, Integer>();
+        BSTMetrics metrics = bst.enableMetrics();
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++)
+            bst.put(random.nextInt(), i);
+        for (int i = 0; i < 1000; i++)
+            bst.get(random.nextInt());
+        System.out.println(metrics.snapshot());
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac BSTMetricsMXBean.java
+ *
+ *  The BST metrics as exposed over JMX by BSTMetrics.register(). Maps are keyed by the name of
+ *  the operation and show up in JMX consoles as tables.
+ */
+
+import java.util.Map;
+
+public interface BSTMetricsMXBean {
+    int getHeight();
+    long getTotalOperations();
+    Map<String, Long> getOperationCounts();
+    Map<String, Double> getComparisonsPerOperation();
+    Map<String, Long> getMedianLatencyNanos();
+    Map<String, Long> getP99LatencyNanos();
+    void reset();
+}
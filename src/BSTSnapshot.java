@@ -0,0 +1,366 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac BSTSnapshot.java
+ *  Execution:    java BSTSnapshot
+ *  Dependencies: BST.java
+ *
+ *  A compact, read-only, memory-mapped on-disk image of a BST.
+ *
+ *  write() streams the entries of a BST to a file in one in-order pass. open() maps the file
+ *  with a FileChannel, and get, floor, ceiling, rank and select then run directly against the
+ *  mapped bytes: nothing is read up front and no node objects are created on the heap, so a
+ *  restarted service can serve lookups from a large table almost immediately.
+ *
+ *  The file stores the tree in its perfectly balanced form: entries are laid out in key order
+ *  and found through a table of record offsets, so the entry at position i has rank i and a
+ *  binary search over the table walks exactly the perfectly balanced BST whose subtree sizes
+ *  are implied by the index ranges. Structure and subtree counts therefore cost no bytes.
+ *
+ *  File layout (big-endian):
+ *      int  magic            "BSTS"
+ *      int  version
+ *      int  number of entries N
+ *      int  offset of the index
+ *      N records             key then value, each encoded by its Codec
+ *      N ints                offset of each record, in key order
+ *
+ *  A single mapping is limited to 2 GB, so larger tables must be split across snapshot files.
+ *
+ *  % java BSTSnapshot
+ *  get(e) = 4, floor(d) = c, rank(m) = 3, select(0) = a
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public class BSTSnapshot<Key extends Comparable<Key>, Value> {
+
+    /** "BSTS" */
+    private static final int MAGIC = 0x42535453;
+
+    private static final int VERSION = 1;
+
+    /** Size of the fixed header in bytes */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Converts keys or values to and from their on-disk form. A codec must read back exactly the
+     * bytes it wrote, leaving the buffer positioned just after them.
+     */
+    public interface Codec<T> {
+        void write(T item, DataOutput out) throws IOException;
+        T read(ByteBuffer in);
+    }
+
+    /** Codec for String keys or values, stored as a length and UTF-8 bytes */
+    public static final Codec<String> STRING = new Codec<String>() {
+        public void write(String item, DataOutput out) throws IOException {
+            byte[] bytes = item.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        public String read(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /** Codec for Integer keys or values, stored in 4 bytes */
+    public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+        public void write(Integer item, DataOutput out) throws IOException { out.writeInt(item);  }
+        public Integer read(ByteBuffer in)                                 { return in.getInt(); }
+    };
+
+    /** Codec for Long keys or values, stored in 8 bytes */
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        public void write(Long item, DataOutput out) throws IOException { out.writeLong(item);  }
+        public Long read(ByteBuffer in)                                 { return in.getLong(); }
+    };
+
+    /** The mapped file */
+    private final MappedByteBuffer map;
+
+    /** Number of entries */
+    private final int N;
+
+    /** Position of the offset table */
+    private final int index;
+
+    private final Codec<Key> keyCodec;
+    private final Codec<Value> valueCodec;
+
+    private BSTSnapshot(MappedByteBuffer map, Codec<Key> keyCodec, Codec<Value> valueCodec) throws IOException {
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC)
+            throw new IOException("Not a BST snapshot");
+        if (map.getInt(4) != VERSION)
+            throw new IOException("Unsupported BST snapshot version " + map.getInt(4));
+        this.map = map;
+        this.N = map.getInt(8);
+        this.index = map.getInt(12);
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        if (N < 0 || index < HEADER_SIZE || (long) index + 4L * N > map.capacity())
+            throw new IOException("Corrupt BST snapshot header");
+    }
+
+   /**
+    * Writing and opening
+    */
+
+    /**
+     * Writes every entry of bst to file in a single streaming pass over the tree.
+     * @throws IOException if the file cannot be written or would exceed 2 GB.
+     */
+    public static <Key extends Comparable<Key>, Value> void write(BST<Key, Value> bst, Path file,
+            Codec<Key> keyCodec, Codec<Value> valueCodec) throws IOException {
+        int n = bst.size();
+        int[] offsets = new int[n];
+        int index;
+        try (CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            DataOutputStream out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(0);        // index offset, patched below once it is known
+
+            int i = 0;
+            for (Map.Entry<Key, Value> entry : bst.entries()) {
+                offsets[i++] = position(counter);
+                keyCodec.write(entry.getKey(), out);
+                valueCodec.write(entry.getValue(), out);
+            }
+            index = position(counter);
+            for (int offset : offsets)
+                out.writeInt(offset);
+            position(counter);
+            out.flush();
+        }
+
+        // patch the index offset into the header now that it is known
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, index), 12);
+        }
+    }
+
+    /** Returns the number of bytes written so far, failing once the file outgrows one mapping. */
+    private static int position(CountingOutputStream counter) throws IOException {
+        if (counter.count > Integer.MAX_VALUE) throw new IOException("BST snapshot larger than 2 GB");
+        return (int) counter.count;
+    }
+
+    /**
+     * Maps a snapshot written by write() into memory. The file is not read up front; pages are
+     * loaded by the operating system as lookups touch them.
+     */
+    public static <Key extends Comparable<Key>, Value> BSTSnapshot<Key, Value> open(Path file,
+            Codec<Key> keyCodec, Codec<Value> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("BST snapshot larger than 2 GB");
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BSTSnapshot<Key, Value>(map, keyCodec, valueCodec);
+        }
+    }
+
+    /** Loads the snapshot into a new, perfectly balanced, on-heap BST in O(N) time. */
+    @SuppressWarnings("unchecked")
+    public BST<Key, Value> toBST() {
+        Comparable<Key>[] keys = (Comparable<Key>[]) new Comparable<?>[N];
+        Object[] values = new Object[N];
+        ByteBuffer in = record(0);
+        for (int i = 0; i < N; i++) {
+            keys[i] = keyCodec.read(in);
+            values[i] = valueCodec.read(in);
+        }
+        return BST.fromSorted((Key[]) keys, (Value[]) values);
+    }
+
+   /**
+    * Reading individual entries
+    */
+
+    /** Returns a private view of the mapping positioned at the record of rank i. */
+    private ByteBuffer record(int i) {
+        ByteBuffer in = map.duplicate();
+        if (N > 0) in.position(map.getInt(index + 4 * i));
+        return in;
+    }
+
+    private Key keyAt(int i) {
+        return keyCodec.read(record(i));
+    }
+
+    private Value valueAt(int i) {
+        ByteBuffer in = record(i);
+        keyCodec.read(in);
+        return valueCodec.read(in);
+    }
+
+    /** Check to see if snapshot is empty */
+    public boolean isEmpty() {
+        return N == 0;
+    }
+
+    /** Return number of key-value pairs in the snapshot */
+    public int size() {
+        return N;
+    }
+
+    /** Checks the snapshot to see if there exists a value with a given key. */
+    public boolean contains(Key key) {
+        int i = rank(key);
+        return i < N && keyAt(i).compareTo(key) == 0;
+    }
+
+    /** Return a value associated with a given key, or null if no such key exists. */
+    public Value get(Key key) {
+        int i = rank(key);
+        if (i < N && keyAt(i).compareTo(key) == 0) return valueAt(i);
+        return null;
+    }
+
+    public Key min() {
+        if (isEmpty()) return null;
+        return keyAt(0);
+    }
+
+    public Key max() {
+        if (isEmpty()) return null;
+        return keyAt(N - 1);
+    }
+
+    public Key floor(Key key) {
+        int i = rank(key);
+        if (i < N && keyAt(i).compareTo(key) == 0) return keyAt(i);
+        if (i == 0) return null;
+        return keyAt(i - 1);
+    }
+
+    public Key ceiling(Key key) {
+        int i = rank(key);
+        if (i == N) return null;
+        return keyAt(i);
+    }
+
+    public Key select(int k) {
+        if (k < 0 || k >= N) return null;
+        return keyAt(k);
+    }
+
+    // Number of keys in the snapshot less than key.
+    public int rank(Key key) {
+        int lo = 0, hi = N;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt(mid).compareTo(key) < 0) lo = mid + 1;
+            else                               hi = mid;
+        }
+        return lo;
+    }
+
+    public Iterable<Key> keys() {
+        return keys(null, null);
+    }
+
+    /**
+     * Returns the keys in [lo, hi] in ascending order, decoded lazily in one sequential pass over
+     * the records.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        return () -> new KeyIterator(lo, hi);
+    }
+
+    // an iterator over consecutive records, doesn't implement remove() since it's optional
+    private class KeyIterator implements Iterator<Key> {
+        private final Key hi;
+        private int i;
+        private ByteBuffer in;
+
+        /** The key of record i once decoded, else null */
+        private Key pending;
+
+        public KeyIterator(Key lo, Key hi) {
+            this.hi = hi;
+            this.i = (lo == null) ? 0 : rank(lo);
+            if (i < N) in = record(i);
+        }
+
+        public boolean hasNext() {
+            if (pending != null) return true;
+            if (i >= N) return false;
+            Key key = keyCodec.read(in);
+            valueCodec.read(in);
+            if (hi != null && key.compareTo(hi) > 0) {
+                i = N;      // every remaining key is larger than hi
+                return false;
+            }
+            pending = key;
+            return true;
+        }
+
+        public void remove()      { throw new UnsupportedOperationException();  }
+
+        public Key next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Key key = pending;
+            pending = null;
+            i++;
+            return key;
+        }
+    }
+
+    /** An output stream that counts the bytes passing through it */
+    private static class CountingOutputStream extends java.io.FilterOutputStream {
+        private long count;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) throws IOException {
+        BST<String, Integer> bst = new BST<String, Integer>();
+        String[] keys = { "m", "c", "x", "a", "e", "p", "z" };
+        for (int i = 0; i < keys.length; i++)
+            bst.put(keys[i], i);
+
+        Path file = Files.createTempFile("bst", ".snapshot");
+        BSTSnapshot.write(bst, file, STRING, INTEGER);
+        BSTSnapshot<String, Integer> snapshot = BSTSnapshot.open(file, STRING, INTEGER);
+        System.out.println("get(e) = " + snapshot.get("e") + ", floor(d) = " + snapshot.floor("d")
+                + ", rank(m) = " + snapshot.rank("m") + ", select(0) = " + snapshot.select(0));
+        Files.delete(file);
+    }
+}
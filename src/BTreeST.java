@@ -0,0 +1,576 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac BTreeST.java
+ *  Execution:    java BTreeST
+ *  Dependencies: none
+ *
+ *  An ordered symbol table implemented with a B+-tree, offering the same methods as BST.
+ *
+ *  Every node holds up to fanout keys in one contiguous array, so a lookup touches about
+ *  log_fanout(N) nodes instead of log_2(N) and scans each node's keys sequentially in cache.
+ *  All key-value pairs live in the leaves, which are chained in key order, so a range scan
+ *  walks from leaf to leaf without going back up the tree. Internal nodes keep, next to each
+ *  child link, the number of keys below that child; rank and select add up or subtract those
+ *  counts on the way down and stay O(log N).
+ *
+ *  Internal node layout: children[i] holds the keys >= keys[i] (for i > 0) and < keys[i + 1];
+ *  keys[0] is not used for routing.
+ *
+ *  % java BTreeST
+ *  size = 100000, height = 5
+ *  rank(5000) = 2500, select(2500) = 5000
+ *  floor(5001) = 5000, ceiling(5001) = 5002
+ *  keys(10, 20): 10 12 14 16 18 20
+ */
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class BTreeST<Key extends Comparable<Key>, Value> {
+
+    /** Default maximum number of entries per node */
+    private static final int DEFAULT_FANOUT = 64;
+
+    /** Maximum number of entries (keys in a leaf, children in an internal node) per node */
+    private final int fanout;
+
+    /** Minimum number of entries of every node except the root */
+    private final int minEntries;
+
+    /** Root of the B+-tree */
+    private Node root;
+
+    /** Number of key-value pairs in the tree */
+    private int N;
+
+    /** Set by insert: did the last insertion add a new key (rather than replace a value)? */
+    private boolean inserted;
+
+    /** A B+-tree node: n entries with their keys stored contiguously */
+    private static abstract class Node {
+
+        /** Number of entries in use */
+        protected int n;
+
+        /** Keys of the entries; one spare slot lets a node overflow briefly before it is split */
+        protected final Object[] keys;
+
+        protected Node(int capacity) {
+            keys = new Object[capacity];
+        }
+    }
+
+    /** A leaf, holding key-value pairs and chained to its neighbours in key order */
+    private static final class Leaf extends Node {
+        private final Object[] vals;
+        private Leaf next, prev;
+
+        private Leaf(int capacity) {
+            super(capacity);
+            vals = new Object[capacity];
+        }
+    }
+
+    /** An internal node, holding child links and the number of keys below each child */
+    private static final class Internal extends Node {
+        private final Node[] children;
+        private final int[] counts;
+
+        private Internal(int capacity) {
+            super(capacity);
+            children = new Node[capacity];
+            counts = new int[capacity];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Key key(Node x, int i) {
+        return (Key) x.keys[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    private Value val(Leaf x, int i) {
+        return (Value) x.vals[i];
+    }
+
+    /** Initializes an empty tree with the default fanout. */
+    public BTreeST() {
+        this(DEFAULT_FANOUT);
+    }
+
+    /**
+     * Initializes an empty tree.
+     * @param fanout Maximum number of entries per node, at least 4.
+     */
+    public BTreeST(int fanout) {
+        if (fanout < 4) throw new IllegalArgumentException("Fanout must be at least 4");
+        this.fanout = fanout;
+        this.minEntries = fanout / 2;
+        this.root = new Leaf(fanout + 1);
+    }
+
+    /** Check to see if the tree is empty */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Return number of key-value pairs in the tree */
+    public int size() {
+        return N;
+    }
+
+    /** Returns the number of keys in the subtree rooted at x. */
+    private int size(Node x) {
+        if (x instanceof Leaf) return x.n;
+        Internal h = (Internal) x;
+        int size = 0;
+        for (int i = 0; i < h.n; i++) size += h.counts[i];
+        return size;
+    }
+
+    /**
+     * Returns the height of the tree: the number of internal levels above the leaves,
+     * or -1 if the tree is empty.
+     */
+    public int height() {
+        if (isEmpty()) return -1;
+        int height = 0;
+        for (Node x = root; x instanceof Internal; x = ((Internal) x).children[0]) height++;
+        return height;
+    }
+
+    /** Returns the index of the first key in leaf x not less than key, or x.n if none. */
+    private int search(Leaf x, Key key) {
+        int lo = 0, hi = x.n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key(x, mid).compareTo(key) < 0) lo = mid + 1;
+            else                               hi = mid;
+        }
+        return lo;
+    }
+
+    /** Returns the index of the child of h whose key range contains key. */
+    private int childIndex(Internal h, Key key) {
+        // largest i >= 1 with keys[i] <= key, or 0
+        int lo = 1, hi = h.n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key(h, mid).compareTo(key) <= 0) lo = mid + 1;
+            else                                hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /** Returns the leaf whose key range contains key. */
+    private Leaf leafFor(Key key) {
+        Node x = root;
+        while (x instanceof Internal) {
+            Internal h = (Internal) x;
+            x = h.children[childIndex(h, key)];
+        }
+        return (Leaf) x;
+    }
+
+    /** Checks the tree to see if there exists a value with a given key. */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /** Return a value associated with a given key, or null if no such key exists. */
+    public Value get(Key key) {
+        Leaf x = leafFor(key);
+        int i = search(x, key);
+        if (i < x.n && key(x, i).compareTo(key) == 0) return val(x, i);
+        return null;
+    }
+
+   /**
+    * Insert key-value pair into the tree
+    * If key already exists, update with new value
+    */
+    public void put(Key key, Value val) {
+        if (val == null) { delete(key); return; }
+        Node sibling = insert(root, key, val);
+        if (inserted) N++;
+        if (sibling != null) {
+            // the root split: grow the tree by one level
+            Internal t = new Internal(fanout + 1);
+            t.children[0] = root;
+            t.counts[0] = size(root);
+            t.keys[1] = sibling.keys[0];
+            t.children[1] = sibling;
+            t.counts[1] = size(sibling);
+            t.n = 2;
+            root = t;
+        }
+    }
+
+    /**
+     * Inserts key-value pair into the subtree rooted at x and records in inserted whether the key
+     * is new.
+     * @return the new right sibling of x if x had to be split, else null. The sibling's keys[0]
+     *         is the separator the parent should use for it.
+     */
+    private Node insert(Node x, Key key, Value val) {
+        if (x instanceof Leaf) {
+            Leaf leaf = (Leaf) x;
+            int i = search(leaf, key);
+            if (i < leaf.n && key(leaf, i).compareTo(key) == 0) {
+                leaf.vals[i] = val;
+                inserted = false;
+                return null;
+            }
+            System.arraycopy(leaf.keys, i, leaf.keys, i + 1, leaf.n - i);
+            System.arraycopy(leaf.vals, i, leaf.vals, i + 1, leaf.n - i);
+            leaf.keys[i] = key;
+            leaf.vals[i] = val;
+            leaf.n++;
+            inserted = true;
+            if (leaf.n > fanout) return split(leaf);
+            return null;
+        }
+
+        Internal h = (Internal) x;
+        int i = childIndex(h, key);
+        Node sibling = insert(h.children[i], key, val);
+        if (inserted) h.counts[i]++;
+        if (sibling == null) return null;
+
+        // hang the new sibling to the right of child i
+        System.arraycopy(h.keys,     i + 1, h.keys,     i + 2, h.n - i - 1);
+        System.arraycopy(h.children, i + 1, h.children, i + 2, h.n - i - 1);
+        System.arraycopy(h.counts,   i + 1, h.counts,   i + 2, h.n - i - 1);
+        h.keys[i + 1] = sibling.keys[0];
+        h.children[i + 1] = sibling;
+        h.counts[i + 1] = size(sibling);
+        h.counts[i] -= h.counts[i + 1];
+        h.n++;
+        if (h.n > fanout) return split(h);
+        return null;
+    }
+
+    /** Moves the upper half of an overfull leaf into a new leaf, which is returned. */
+    private Leaf split(Leaf x) {
+        Leaf t = new Leaf(fanout + 1);
+        int mid = x.n / 2;
+        t.n = x.n - mid;
+        System.arraycopy(x.keys, mid, t.keys, 0, t.n);
+        System.arraycopy(x.vals, mid, t.vals, 0, t.n);
+        clear(x, mid, x.n);
+        x.n = mid;
+        t.next = x.next;
+        if (t.next != null) t.next.prev = t;
+        t.prev = x;
+        x.next = t;
+        return t;
+    }
+
+    /** Moves the upper half of an overfull internal node into a new node, which is returned. */
+    private Internal split(Internal h) {
+        Internal t = new Internal(fanout + 1);
+        int mid = h.n / 2;
+        t.n = h.n - mid;
+        System.arraycopy(h.keys,     mid, t.keys,     0, t.n);   // t.keys[0] becomes the separator
+        System.arraycopy(h.children, mid, t.children, 0, t.n);
+        System.arraycopy(h.counts,   mid, t.counts,   0, t.n);
+        clear(h, mid, h.n);
+        h.n = mid;
+        return t;
+    }
+
+    /** Nulls out entries [from, to) of x to avoid loitering. */
+    private void clear(Node x, int from, int to) {
+        for (int i = from; i < to; i++) {
+            x.keys[i] = null;
+            if (x instanceof Leaf) ((Leaf) x).vals[i] = null;
+            else                   ((Internal) x).children[i] = null;
+        }
+    }
+
+   /**
+    *  Deletion
+    */
+
+    public void deleteMin() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        delete(min());
+    }
+
+    public void deleteMax() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        delete(max());
+    }
+
+    public void delete(Key key) {
+        if (!delete(root, key)) return;
+        N--;
+        // the root lost its second-to-last child: shrink the tree by one level
+        if (root instanceof Internal && root.n == 1) root = ((Internal) root).children[0];
+    }
+
+    /**
+     * Removes key from the subtree rooted at x, rebalancing any child left underfull.
+     * @return whether the key was found.
+     */
+    private boolean delete(Node x, Key key) {
+        if (x instanceof Leaf) {
+            Leaf leaf = (Leaf) x;
+            int i = search(leaf, key);
+            if (i == leaf.n || key(leaf, i).compareTo(key) != 0) return false;
+            System.arraycopy(leaf.keys, i + 1, leaf.keys, i, leaf.n - i - 1);
+            System.arraycopy(leaf.vals, i + 1, leaf.vals, i, leaf.n - i - 1);
+            leaf.n--;
+            clear(leaf, leaf.n, leaf.n + 1);
+            return true;
+        }
+
+        Internal h = (Internal) x;
+        int i = childIndex(h, key);
+        if (!delete(h.children[i], key)) return false;
+        h.counts[i]--;
+        if (h.children[i].n < minEntries) rebalance(h, i);
+        return true;
+    }
+
+    /** Restores the minimum occupancy of child i of h by borrowing from or merging with a sibling. */
+    private void rebalance(Internal h, int i) {
+        if      (i > 0       && h.children[i - 1].n > minEntries) borrowFromLeft(h, i);
+        else if (i < h.n - 1 && h.children[i + 1].n > minEntries) borrowFromRight(h, i);
+        else if (i > 0)                                           merge(h, i - 1);
+        else                                                      merge(h, i);
+    }
+
+    /** Moves the last entry of child i - 1 of h to the front of child i. */
+    private void borrowFromLeft(Internal h, int i) {
+        Node left = h.children[i - 1];
+        Node x = h.children[i];
+        int moved;
+        System.arraycopy(x.keys, 0, x.keys, 1, x.n);
+        if (x instanceof Leaf) {
+            Leaf l = (Leaf) left, c = (Leaf) x;
+            System.arraycopy(c.vals, 0, c.vals, 1, c.n);
+            c.keys[0] = l.keys[l.n - 1];
+            c.vals[0] = l.vals[l.n - 1];
+            h.keys[i] = c.keys[0];
+            moved = 1;
+        }
+        else {
+            Internal l = (Internal) left, c = (Internal) x;
+            System.arraycopy(c.children, 0, c.children, 1, c.n);
+            System.arraycopy(c.counts,   0, c.counts,   1, c.n);
+            c.children[0] = l.children[l.n - 1];
+            c.counts[0] = l.counts[l.n - 1];
+            c.keys[1] = h.keys[i];
+            h.keys[i] = l.keys[l.n - 1];
+            moved = c.counts[0];
+        }
+        clear(left, left.n - 1, left.n);
+        left.n--;
+        x.n++;
+        h.counts[i - 1] -= moved;
+        h.counts[i]     += moved;
+    }
+
+    /** Moves the first entry of child i + 1 of h to the end of child i. */
+    private void borrowFromRight(Internal h, int i) {
+        Node x = h.children[i];
+        Node right = h.children[i + 1];
+        int moved;
+        if (x instanceof Leaf) {
+            Leaf c = (Leaf) x, r = (Leaf) right;
+            c.keys[c.n] = r.keys[0];
+            c.vals[c.n] = r.vals[0];
+            System.arraycopy(r.vals, 1, r.vals, 0, r.n - 1);
+            moved = 1;
+        }
+        else {
+            Internal c = (Internal) x, r = (Internal) right;
+            c.keys[c.n] = h.keys[i + 1];
+            c.children[c.n] = r.children[0];
+            c.counts[c.n] = r.counts[0];
+            moved = r.counts[0];
+            System.arraycopy(r.children, 1, r.children, 0, r.n - 1);
+            System.arraycopy(r.counts,   1, r.counts,   0, r.n - 1);
+        }
+        System.arraycopy(right.keys, 1, right.keys, 0, right.n - 1);
+        x.n++;
+        right.n--;
+        clear(right, right.n, right.n + 1);
+        h.keys[i + 1] = right.keys[0];
+        h.counts[i]     += moved;
+        h.counts[i + 1] -= moved;
+    }
+
+    /** Merges child j + 1 of h into child j and removes it from h. */
+    private void merge(Internal h, int j) {
+        Node a = h.children[j];
+        Node b = h.children[j + 1];
+        if (a instanceof Leaf) {
+            Leaf l = (Leaf) a, r = (Leaf) b;
+            System.arraycopy(r.keys, 0, l.keys, l.n, r.n);
+            System.arraycopy(r.vals, 0, l.vals, l.n, r.n);
+            l.next = r.next;
+            if (l.next != null) l.next.prev = l;
+        }
+        else {
+            Internal l = (Internal) a, r = (Internal) b;
+            System.arraycopy(r.keys,     0, l.keys,     l.n, r.n);
+            System.arraycopy(r.children, 0, l.children, l.n, r.n);
+            System.arraycopy(r.counts,   0, l.counts,   l.n, r.n);
+            l.keys[l.n] = h.keys[j + 1];    // r's first child is routed by the parent's separator
+        }
+        a.n += b.n;
+
+        h.counts[j] += h.counts[j + 1];
+        System.arraycopy(h.keys,     j + 2, h.keys,     j + 1, h.n - j - 2);
+        System.arraycopy(h.children, j + 2, h.children, j + 1, h.n - j - 2);
+        System.arraycopy(h.counts,   j + 2, h.counts,   j + 1, h.n - j - 2);
+        h.n--;
+        clear(h, h.n, h.n + 1);
+    }
+
+   /**
+    * Min, max, floor, and ceiling
+    */
+    public Key min() {
+        if (isEmpty()) return null;
+        Node x = root;
+        while (x instanceof Internal) x = ((Internal) x).children[0];
+        return key(x, 0);
+    }
+
+    public Key max() {
+        if (isEmpty()) return null;
+        Node x = root;
+        while (x instanceof Internal) x = ((Internal) x).children[x.n - 1];
+        return key(x, x.n - 1);
+    }
+
+    public Key floor(Key key) {
+        if (isEmpty()) return null;
+        Leaf x = leafFor(key);
+        int i = search(x, key);
+        if (i < x.n && key(x, i).compareTo(key) == 0) return key(x, i);
+        if (i > 0) return key(x, i - 1);
+        // key is smaller than everything in its leaf, so the floor ends the previous leaf
+        if (x.prev == null) return null;
+        return key(x.prev, x.prev.n - 1);
+    }
+
+    public Key ceiling(Key key) {
+        if (isEmpty()) return null;
+        Leaf x = leafFor(key);
+        int i = search(x, key);
+        if (i < x.n) return key(x, i);
+        // key is larger than everything in its leaf, so the ceiling starts the next leaf
+        if (x.next == null) return null;
+        return key(x.next, 0);
+    }
+
+   /**
+    * Rank and selection
+    */
+    public Key select(int k) {
+        if (k < 0 || k >= size()) return null;
+        Node x = root;
+        while (x instanceof Internal) {
+            Internal h = (Internal) x;
+            int i = 0;
+            while (k >= h.counts[i]) k -= h.counts[i++];
+            x = h.children[i];
+        }
+        return key(x, k);
+    }
+
+    // Number of keys in the tree less than key.
+    public int rank(Key key) {
+        int rank = 0;
+        Node x = root;
+        while (x instanceof Internal) {
+            Internal h = (Internal) x;
+            int c = childIndex(h, key);
+            for (int i = 0; i < c; i++) rank += h.counts[i];
+            x = h.children[c];
+        }
+        return rank + search((Leaf) x, key);
+    }
+
+   /**
+    * Range count and range search.
+    */
+    public Iterable<Key> keys() {
+        return keys(null, null);
+    }
+
+    /**
+     * Returns the keys in [lo, hi] in ascending order. The keys are produced lazily by scanning
+     * the chained leaves; the tree must not be modified while an iteration is in progress.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        return () -> new LeafIterator(lo, hi);
+    }
+
+    // an iterator over a run of chained leaves, doesn't implement remove() since it's optional
+    private class LeafIterator implements Iterator<Key> {
+        private Leaf leaf;
+        private int i;
+        private final Key hi;
+
+        public LeafIterator(Key lo, Key hi) {
+            this.hi = hi;
+            if (isEmpty()) return;
+            if (lo == null) {
+                Node x = root;
+                while (x instanceof Internal) x = ((Internal) x).children[0];
+                leaf = (Leaf) x;
+                return;
+            }
+            leaf = leafFor(lo);
+            i = search(leaf, lo);
+        }
+
+        public boolean hasNext() {
+            while (leaf != null && i == leaf.n) {
+                leaf = leaf.next;
+                i = 0;
+            }
+            if (leaf == null) return false;
+            if (hi == null || key(leaf, i).compareTo(hi) <= 0) return true;
+            leaf = null;        // every remaining key is larger than hi
+            return false;
+        }
+
+        public void remove()      { throw new UnsupportedOperationException();  }
+
+        public Key next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return key(leaf, i++);
+        }
+    }
+
+    public int size(Key lo, Key hi) {
+        if (lo.compareTo(hi) > 0) return 0;
+        if (contains(hi)) return rank(hi) - rank(lo) + 1;
+        else              return rank(hi) - rank(lo);
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+        BTreeST<Integer, Integer> st = new BTreeST<Integer, Integer>(16);
+        for (int i = 0; i < 100000; i++)
+            st.put(2 * i, i);
+
+        System.out.println("size = " + st.size() + ", height = " + st.height());
+        System.out.println("rank(5000) = " + st.rank(5000) + ", select(2500) = " + st.select(2500));
+        System.out.println("floor(5001) = " + st.floor(5001) + ", ceiling(5001) = " + st.ceiling(5001));
+        System.out.print("keys(10, 20): ");
+        for (int key : st.keys(10, 20))
+            System.out.print(key + " ");
+        System.out.println();
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac CSRGraph.java
+ *  Execution:    java CSRGraph
+ *  Dependencies: DirectedGraph.java UndirectedGraph.java IntQueue.java Queue.java
+ *
+ *  A frozen copy of a DirectedGraph or UndirectedGraph in compressed sparse row (CSR) form, for
+ *  fast breadth-first and depth-first search over large graphs.
+ *
+ *  Each vertex gets an int id, 0..V-1, in the iteration order of the source graph's vertex map,
+ *  so a full depth-first search visits roots in the same order as the graph's own. The edges
+ *  leaving vertex v are edges offsets[v]..offsets[v+1]-1, in adjacency list order; for edge e,
+ *  targets[e] is the id of the vertex it leads to and actions[e] and weights[e] its action and
+ *  weight. A search therefore walks contiguous int arrays instead of hashing a label and
+ *  chasing a list node per edge, and the whole graph costs a few ints per edge.
+ *
+ *  An edge to a label that is not a vertex of the source graph (a DirectedGraph only adds
+ *  vertices for the tails of edges and for addVertex) is left out, exactly as the graph's own
+ *  searches ignore it. Later changes to the source graph are not reflected in the copy.
+ *
+ *  Searches return a Traversal, which holds the parent, distance and discovery and finishing
+ *  times of every vertex, so several searches of one CSRGraph can be kept and run side by side.
+ *
+ *  % java CSRGraph
+ *  Start at 0, east to 1, south to 2
+ *  Distance from (0,0) to (299,299): 598
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class CSRGraph {
+
+    /** Label of each vertex id */
+    private final String[] labels;
+
+    /** Id of each vertex label */
+    private final HashMap<String, Integer> ids;
+
+    /** Edges leaving vertex v are offsets[v]..offsets[v+1]-1 */
+    private final int[] offsets;
+
+    /** Target vertex, action and weight of each edge; actions is null for an undirected graph */
+    private final int[] targets;
+    private final String[] actions;
+    private final int[] weights;
+
+    /** Copies a directed graph, with the action and weight of every edge. */
+    public CSRGraph(DirectedGraph g) {
+        int V = g.vertices.size();
+        labels = g.vertices.keySet().toArray(new String[V]);
+        ids = index(labels);
+
+        offsets = new int[V + 1];
+        int E = 0;
+        for (int v = 0; v < V; v++) {
+            for (DirectedGraph.Edge e : g.vertices.get(labels[v]).adjacencyList)
+                if (ids.containsKey(e.vertexLabel)) E++;
+            offsets[v + 1] = E;
+        }
+
+        targets = new int[E];
+        actions = new String[E];
+        weights = new int[E];
+        for (int v = 0, i = 0; v < V; v++) {
+            for (DirectedGraph.Edge e : g.vertices.get(labels[v]).adjacencyList) {
+                Integer w = ids.get(e.vertexLabel);
+                if (w == null) continue;
+                targets[i] = w;
+                actions[i] = e.action;
+                weights[i] = e.weight;
+                i++;
+            }
+        }
+    }
+
+    /** Copies an undirected graph; each undirected edge becomes one edge in either direction. */
+    public CSRGraph(UndirectedGraph g) {
+        int V = g.vertices.size();
+        labels = g.vertices.keySet().toArray(new String[V]);
+        ids = index(labels);
+
+        offsets = new int[V + 1];
+        int E = 0;
+        for (int v = 0; v < V; v++) {
+            for (UndirectedGraph.Edge e : g.vertices.get(labels[v]).adjacencyList)
+                if (ids.containsKey(e.vertexLabel)) E++;
+            offsets[v + 1] = E;
+        }
+
+        targets = new int[E];
+        actions = null;
+        weights = new int[E];
+        for (int v = 0, i = 0; v < V; v++) {
+            for (UndirectedGraph.Edge e : g.vertices.get(labels[v]).adjacencyList) {
+                Integer w = ids.get(e.vertexLabel);
+                if (w == null) continue;
+                targets[i] = w;
+                weights[i] = e.weight;
+                i++;
+            }
+        }
+    }
+
+    /** Returns the id of every label: its index in labels. */
+    private static HashMap<String, Integer> index(String[] labels) {
+        HashMap<String, Integer> ids = new HashMap<String, Integer>(2 * labels.length);
+        for (int v = 0; v < labels.length; v++)
+            ids.put(labels[v], v);
+        return ids;
+    }
+
+   /**
+    * Structure
+    */
+
+    /** Return number of vertices */
+    public int V() {
+        return labels.length;
+    }
+
+    /** Return number of (directed) edges */
+    public int E() {
+        return targets.length;
+    }
+
+    /** Returns the id of the vertex with the given label, or -1 if there is none. */
+    public int id(String label) {
+        Integer v = ids.get(label);
+        return (v == null) ? -1 : v;
+    }
+
+    public String label(int v) {
+        return labels[v];
+    }
+
+    /** Edges leaving v are edgeStart(v)..edgeEnd(v)-1 */
+    public int edgeStart(int v)     { return offsets[v];       }
+    public int edgeEnd(int v)       { return offsets[v + 1];   }
+    public int outDegree(int v)     { return offsets[v + 1] - offsets[v]; }
+
+    public int target(int e)        { return targets[e];       }
+    public int weight(int e)        { return weights[e];       }
+
+    /** Returns the action of edge e, or null for an undirected graph. */
+    public String action(int e) {
+        return (actions == null) ? null : actions[e];
+    }
+
+    private int checkedId(String label) {
+        Integer v = ids.get(label);
+        if (v == null) throw new IllegalArgumentException("No vertex " + label);
+        return v;
+    }
+
+   /**
+    * Searches
+    */
+
+    /** Breadth-first search from the vertex with the given label. */
+    public Traversal breadthFirstSearch(String label) {
+        return breadthFirstSearch(checkedId(label));
+    }
+
+    /** Breadth-first search from vertex s: sets distance and parent of every reachable vertex. */
+    public Traversal breadthFirstSearch(int s) {
+        Traversal t = new Traversal(s);
+        t.distance[s] = 0;
+        IntQueue q = new IntQueue(V());
+        q.enqueue(s);
+        while (!q.isEmpty()) {
+            int u = q.dequeue();
+            for (int e = offsets[u], end = offsets[u + 1]; e < end; e++) {
+                int v = targets[e];
+                if (t.distance[v] == Integer.MAX_VALUE) {
+                    t.distance[v] = t.distance[u] + 1;
+                    t.parentEdge[v] = e;
+                    t.parent[v] = u;
+                    q.enqueue(v);
+                }
+            }
+        }
+        return t;
+    }
+
+    /** Depth-first search of the whole graph, taking every undiscovered vertex as a root in id order. */
+    public Traversal depthFirstSearch() {
+        Traversal t = new Traversal(-1);
+        int[] stack = new int[V()], cursor = new int[V()];
+        for (int s = 0; s < V(); s++)
+            if (t.discoveryTime[s] == 0) dfsVisit(t, s, stack, cursor);
+        return t;
+    }
+
+    /** Depth-first search from the vertex with the given label. */
+    public Traversal depthFirstSearch(String label) {
+        return depthFirstSearch(checkedId(label));
+    }
+
+    /** Depth-first search from vertex s: sets discovery and finishing times and parents. */
+    public Traversal depthFirstSearch(int s) {
+        Traversal t = new Traversal(s);
+        dfsVisit(t, s, new int[V()], new int[V()]);
+        return t;
+    }
+
+    /**
+     * Visits every undiscovered vertex reachable from s, with an explicit stack in place of
+     * recursion: stack holds the vertices on the current path and cursor[i] the next edge of
+     * stack[i] to try, so the times are those of the recursive search.
+     */
+    private void dfsVisit(Traversal t, int s, int[] stack, int[] cursor) {
+        int depth = 0;
+        stack[0] = s;
+        cursor[0] = offsets[s];
+        t.discoveryTime[s] = ++t.time;
+        while (depth >= 0) {
+            int u = stack[depth];
+            int e = cursor[depth];
+            if (e < offsets[u + 1]) {
+                cursor[depth]++;
+                int v = targets[e];
+                if (t.discoveryTime[v] == 0) {
+                    t.parent[v] = u;
+                    t.parentEdge[v] = e;
+                    t.discoveryTime[v] = ++t.time;
+                    stack[++depth] = v;
+                    cursor[depth] = offsets[v];
+                }
+            }
+            else {
+                t.finishingTime[u] = ++t.time;
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * The result of one search: for every vertex, its parent and the edge from it, and the
+     * distance (breadth-first) or the discovery and finishing times (depth-first). Times start
+     * at 1, so a time of 0 means the vertex was never reached, as does a distance of
+     * Integer.MAX_VALUE.
+     */
+    public class Traversal {
+        /** Source of the search, or -1 for a depth-first search of the whole graph */
+        private final int source;
+        private final int[] parent, parentEdge;
+        private final int[] distance, discoveryTime, finishingTime;
+        private int time;
+
+        private Traversal(int source) {
+            this.source = source;
+            int V = V();
+            parent = new int[V];
+            parentEdge = new int[V];
+            distance = new int[V];
+            discoveryTime = new int[V];
+            finishingTime = new int[V];
+            Arrays.fill(parent, -1);
+            Arrays.fill(parentEdge, -1);
+            Arrays.fill(distance, Integer.MAX_VALUE);
+        }
+
+        public int source()                  { return source;                 }
+        public int parent(int v)             { return parent[v];              }
+        public int parentEdge(int v)         { return parentEdge[v];          }
+        public int distance(int v)           { return distance[v];            }
+        public int discoveryTime(int v)      { return discoveryTime[v];       }
+        public int finishingTime(int v)      { return finishingTime[v];       }
+
+        /** Returns the label of the parent of the labeled vertex, or null for a root or unreached vertex. */
+        public String parent(String label) {
+            int p = parent[checkedId(label)];
+            return (p < 0) ? null : labels[p];
+        }
+
+        /** Returns the action of the edge the labeled vertex was reached by, or null if none. */
+        public String parentAction(String label) {
+            int e = parentEdge[checkedId(label)];
+            return (e < 0) ? null : action(e);
+        }
+
+        public int distance(String label)        { return distance[checkedId(label)];        }
+        public int discoveryTime(String label)   { return discoveryTime[checkedId(label)];   }
+        public int finishingTime(String label)   { return finishingTime[checkedId(label)];   }
+
+        /** Returns the ids on the tree path from the root of v's search tree to v. */
+        public int[] pathTo(int v) {
+            int n = 1;
+            for (int x = v; parent[x] >= 0; x = parent[x]) n++;
+            int[] path = new int[n];
+            for (int x = v; n > 0; x = parent[x]) path[--n] = x;
+            return path;
+        }
+
+        /** Returns the labels on the tree path from the root of the labeled vertex's search tree to it. */
+        public Iterable<String> pathTo(String label) {
+            Queue<String> path = new Queue<String>();
+            for (int v : pathTo(checkedId(label))) path.enqueue(labels[v]);
+            return path;
+        }
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+        DirectedGraph g = new DirectedGraph();
+        g.addEdge("0", "1", "east to");
+        g.addEdge("1", "0", "west to");
+        g.addEdge("1", "2", "south to");
+        g.addEdge("2", "1", "north to");
+        g.addEdge("1", "3", "east to");
+        g.addEdge("3", "1", "west to");
+
+        CSRGraph csr = new CSRGraph(g);
+        CSRGraph.Traversal bfs = csr.breadthFirstSearch("0");
+        StringBuilder path = new StringBuilder();
+        for (String label : bfs.pathTo("2")) {
+            if (path.length() == 0) path.append("Start at ").append(label);
+            else                    path.append(", ").append(bfs.parentAction(label)).append(' ').append(label);
+        }
+        System.out.println(path);
+
+        // a 300 x 300 grid
+        UndirectedGraph grid = new UndirectedGraph();
+        int n = 300;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i + 1 < n) grid.addEdge("(" + i + "," + j + ")", "(" + (i + 1) + "," + j + ")");
+                if (j + 1 < n) grid.addEdge("(" + i + "," + j + ")", "(" + i + "," + (j + 1) + ")");
+            }
+        }
+        CSRGraph.Traversal t = new CSRGraph(grid).breadthFirstSearch("(0,0)");
+        System.out.println("Distance from (0,0) to (299,299): " + t.distance("(299,299)"));
+    }
+}
@@ -0,0 +1,521 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac ConcurrentBST.java
+ *  Execution:    java ConcurrentBST
+ *  Dependencies: Queue.java
+ *
+ *  A thread-safe symbol table implemented with a binary search tree whose readers never block
+ *  and whose writers lock only the nodes they change.
+ *
+ *  Readers follow volatile child links from the root without taking any lock. A writer first
+ *  searches the same way, then locks just the node it changes: the node whose empty link a new
+ *  key is attached to, or the node whose value is replaced. Writers to different parts of the
+ *  tree therefore never wait for or retry because of one another. A writer that finds its node
+ *  changed under it (the link filled, or the node unlinked) simply searches again.
+ *
+ *  delete clears the value of the key's node, leaving it in place as a routing node that still
+ *  directs searches. A routing node with at most one child is then unlinked by pointing its
+ *  parent at that child, under the locks of just the parent and the node, always taken parent
+ *  first. Nodes never move otherwise, so a reader standing on an unlinked node still finds its
+ *  way back into the tree. A routing node with two children stays until one of them is deleted
+ *  and its subtree cleaned up, and put on its key brings it back to life.
+ *
+ *  Every node counts the keys (not routing nodes) in its subtree for rank and select. A writer
+ *  adds to the counts of the nodes on its search path with atomic additions after the change,
+ *  which never block or retry. Counts are exact whenever no write is in progress; meanwhile
+ *  rank, select and size may reflect some in-flight writes and not others.
+ *
+ *  The tree is not balanced, so height (and with it every operation) is O(N) in the worst case,
+ *  e.g. for keys inserted in order. Iteration is weakly consistent: keys always come in strictly
+ *  ascending order and it never throws because of concurrent updates, which it may or may not
+ *  see. For consistent point-in-time views use
+ *  PersistentBST, whose snapshots are immutable.
+ *
+ *  % java ConcurrentBST
+ *  Size after 4 writer threads: 40000
+ *  Size after deleting the odd keys: 20000
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class ConcurrentBST<Key extends Comparable<Key>, Value> {
+
+    /** Sentinel above the root, so the root has a parent; the tree hangs from its right link */
+    private final Node head = new Node(null, null);
+
+    /** A BST Node; its monitor guards updates to val, left, right and removed */
+    private class Node {
+
+        /** Key that determine position of data in BST. */
+        private final Key key;
+
+        /** Data associated with key, or null for a routing node whose key was deleted */
+        private volatile Value val;
+
+        /** Left and Right children, potentially parents of subtrees */
+        private volatile Node left, right;
+
+        /** Number of keys in subtree, routing nodes excluded; updated through COUNT */
+        private volatile int N;
+
+        /** Whether this node has been unlinked from the tree */
+        private boolean removed;
+
+        /** Node Constructor */
+        public Node(Key key, Value val) {
+            this.key = key;
+            this.val = val;
+            this.N = (val == null) ? 0 : 1;
+        }
+    }
+
+    private static final VarHandle COUNT;
+    static {
+        try {
+            COUNT = MethodHandles.lookup().findVarHandle(ConcurrentBST.Node.class, "N", int.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Check to see if BST is empty */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Return size of BST */
+    public int size() {
+        return size(head.right);
+    }
+
+    /**
+     * Return number of key-value pairs in BST at a certain root.
+     * @param x the Node to examine as the root.
+     */
+    private int size(Node x) {
+        if (x == null) return 0;
+        else return Math.max(0, x.N);     // briefly negative if a delete's count lands first
+    }
+
+    /** Returns the child of x on the side cmp points to. */
+    private Node child(Node x, int cmp) {
+        if (cmp < 0) return x.left;
+        else return x.right;
+    }
+
+    /** Adds delta to the count of every node on path. */
+    private void addToCounts(ArrayList<Node> path, int delta) {
+        for (int i = 0; i < path.size(); i++)
+            COUNT.getAndAdd(path.get(i), delta);
+    }
+
+    /**
+     * Checks the search tree to see if there exists a value with a given key.
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /** Return a value associated with a given key, or null if no such key exists. */
+    public Value get(Key key) {
+        Node x = head.right;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) x = x.right;
+            else              return x.val;
+        }
+        return null;
+    }
+
+   /**
+    * Insert key-value pair into BST
+    * If key already exists, update with new value
+    */
+    public void put(Key key, Value val) {
+        if (val == null) { delete(key); return; }
+        ArrayList<Node> path = new ArrayList<Node>();
+        while (true) {
+            // search without locks, remembering the path whose counts change
+            path.clear();
+            Node parent = head;
+            Node x = head.right;
+            int cmp = 1;
+            while (x != null) {
+                cmp = key.compareTo(x.key);
+                if (cmp == 0) break;
+                path.add(x);
+                parent = x;
+                x = child(x, cmp);
+            }
+
+            if (x != null) {
+                boolean revived;
+                synchronized (x) {
+                    if (x.removed) continue;
+                    revived = x.val == null;
+                    x.val = val;
+                }
+                if (revived) {
+                    path.add(x);
+                    addToCounts(path, 1);
+                }
+                return;
+            }
+
+            Node node = new Node(key, val);
+            synchronized (parent) {
+                if (parent.removed || child(parent, cmp) != null) continue;
+                if (cmp < 0) parent.left  = node;
+                else         parent.right = node;
+            }
+            addToCounts(path, 1);
+            return;
+        }
+    }
+
+   /**
+    *  Deletion
+    */
+
+    public void deleteMin() {
+        while (true) {
+            Key key = min();
+            if (key == null) throw new NoSuchElementException("Symbol table underflow");
+            if (remove(key)) return;        // else another thread deleted it first
+        }
+    }
+
+    public void deleteMax() {
+        while (true) {
+            Key key = max();
+            if (key == null) throw new NoSuchElementException("Symbol table underflow");
+            if (remove(key)) return;
+        }
+    }
+
+    public void delete(Key key) {
+        remove(key);
+    }
+
+    /** Deletes key, returning whether this call was the one that deleted it. */
+    private boolean remove(Key key) {
+        ArrayList<Node> path = new ArrayList<Node>();
+        while (true) {
+            path.clear();
+            Node x = head.right;
+            while (x != null) {
+                int cmp = key.compareTo(x.key);
+                path.add(x);
+                if (cmp == 0) break;
+                x = child(x, cmp);
+            }
+            if (x == null) return false;
+
+            synchronized (x) {
+                if (x.removed) continue;
+                if (x.val == null) return false;
+                x.val = null;
+            }
+            addToCounts(path, -1);
+            unlinkRouting(path);
+            return true;
+        }
+    }
+
+    /**
+     * Unlinks the last node of path if it is a routing node with at most one child, then does the
+     * same for each ancestor that this leaves as such, stopping at the first that is not.
+     */
+    private void unlinkRouting(ArrayList<Node> path) {
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node parent = (i == 0) ? head : path.get(i - 1);
+            if (!unlink(parent, path.get(i))) return;
+        }
+    }
+
+    /** Replaces x by its only child, if x is still a routing child of parent with at most one. */
+    private boolean unlink(Node parent, Node x) {
+        synchronized (parent) {
+            synchronized (x) {
+                if (parent.removed || x.removed || x.val != null) return false;
+                if (x.left != null && x.right != null) return false;
+                Node child = (x.left != null) ? x.left : x.right;
+                if      (parent.left  == x) parent.left  = child;
+                else if (parent.right == x) parent.right = child;
+                else return false;
+                x.removed = true;       // x keeps its links, for readers still standing on it
+                return true;
+            }
+        }
+    }
+
+   /**
+    * Min, max, floor, and ceiling
+    */
+    public Key min() {
+        return ceiling(null);
+    }
+
+    public Key max() {
+        return floor(null);
+    }
+
+    /**
+     * Returns the largest key less than or equal to key, or the largest key if key is null.
+     */
+    public Key floor(Key key) {
+        // nodes whose key is at most key, the deepest (and so largest) one last
+        ArrayDeque<Node> candidates = null;
+        Node best = null;
+        boolean routing = false;
+        for (Node x = head.right; x != null; ) {
+            int cmp = (key == null) ? 1 : key.compareTo(x.key);
+            if (cmp < 0) { x = x.left; continue; }
+            if (x.val != null) { best = x; routing = false; }
+            else routing = true;    // its left subtree may hold keys above best
+            if (candidates == null) candidates = new ArrayDeque<Node>();
+            candidates.push(x);
+            if (cmp == 0) break;
+            x = x.right;
+        }
+        if (!routing) return (best == null) ? null : best.key;
+
+        // slow path: some candidate above best is a routing node, so look in its left subtree
+        for (Node x : candidates) {
+            if (x == best) return x.key;
+            if (x.val != null) return x.key;
+            Key last = last(x.left);
+            if (last != null) return last;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the smallest key greater than or equal to key, or the smallest key if key is null.
+     */
+    public Key ceiling(Key key) {
+        ArrayDeque<Node> candidates = null;
+        Node best = null;
+        boolean routing = false;
+        for (Node x = head.right; x != null; ) {
+            int cmp = (key == null) ? -1 : key.compareTo(x.key);
+            if (cmp > 0) { x = x.right; continue; }
+            if (x.val != null) { best = x; routing = false; }
+            else routing = true;
+            if (candidates == null) candidates = new ArrayDeque<Node>();
+            candidates.push(x);
+            if (cmp == 0) break;
+            x = x.left;
+        }
+        if (!routing) return (best == null) ? null : best.key;
+
+        for (Node x : candidates) {
+            if (x == best) return x.key;
+            if (x.val != null) return x.key;
+            Key first = first(x.right);
+            if (first != null) return first;
+        }
+        return null;
+    }
+
+    /** Returns the smallest key in the subtree rooted at x, skipping routing nodes. */
+    private Key first(Node x) {
+        KeyIterator keys = new KeyIterator(x, null, null);
+        return keys.hasNext() ? keys.next() : null;
+    }
+
+    /** Returns the largest key in the subtree rooted at x, skipping routing nodes. */
+    private Key last(Node x) {
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        for (; x != null; x = x.right) stack.push(x);
+        while (!stack.isEmpty()) {
+            Node t = stack.pop();
+            if (t.val != null) return t.key;
+            for (Node c = t.left; c != null; c = c.right) stack.push(c);
+        }
+        return null;
+    }
+
+   /**
+    * Rank and selection
+    */
+    public Key select(int k) {
+        if (k < 0) return null;
+        Node x = head.right;
+        while (x != null) {
+            int t = size(x.left);
+            int self = (x.val != null) ? 1 : 0;
+            if      (k < t)        x = x.left;
+            else if (k < t + self) return x.key;
+            else                 { k = k - t - self; x = x.right; }
+        }
+        return null;        // k is out of range, or the counts were mid-update
+    }
+
+    // Number of keys in the tree less than key.
+    public int rank(Key key) {
+        int r = 0;
+        Node x = head.right;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) { r += size(x.left) + ((x.val != null) ? 1 : 0); x = x.right; }
+            else              return r + size(x.left);
+        }
+        return r;
+    }
+
+   /**
+    * Range count and range search.
+    */
+    public Iterable<Key> keys() {
+        return keys(null, null);
+    }
+
+    /**
+     * Returns the keys in [lo, hi] in ascending order, produced lazily from the live tree. The
+     * iteration is weakly consistent.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        return () -> new KeyIterator(head.right, lo, hi);
+    }
+
+    /** Explicit-stack in-order iterator over the keys in [lo, hi], skipping routing nodes. */
+    private class KeyIterator implements Iterator<Key> {
+
+        /** Nodes still to be visited, the next one in key order on top */
+        private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+
+        /** Largest key of interest, or null to walk to the maximum */
+        private final Key hi;
+
+        /** Whether the node on top of the stack was seen holding a key, not routing */
+        private boolean found;
+
+        /** Last key returned, or null before the first */
+        private Key last;
+
+        public KeyIterator(Node x, Key lo, Key hi) {
+            this.hi = hi;
+            while (x != null) {
+                int cmp = (lo == null) ? -1 : lo.compareTo(x.key);
+                if (cmp < 0)      { stack.push(x); x = x.left; }
+                else if (cmp > 0) x = x.right;
+                else            { stack.push(x); break; }
+            }
+        }
+
+        public boolean hasNext() {
+            while (!stack.isEmpty() && !found) {
+                Node x = stack.peek();
+                // a key deleted and put back, or put below a node we passed, can land in the part
+                // still ahead of us; skip it rather than go backwards
+                found = x.val != null && (last == null || last.compareTo(x.key) < 0);
+                if (!found) advance();
+            }
+            if (stack.isEmpty()) return false;
+            if (hi == null || hi.compareTo(stack.peek().key) >= 0) return true;
+            stack.clear();      // every remaining key is larger than hi
+            return false;
+        }
+
+        /** Pops the top node and pushes the left spine of its right subtree. */
+        private Node advance() {
+            Node x = stack.pop();
+            for (Node t = x.right; t != null; t = t.left)
+                stack.push(t);
+            return x;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Key next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            found = false;
+            last = advance().key;
+            return last;
+        }
+    }
+
+    public int size(Key lo, Key hi) {
+        if (lo.compareTo(hi) > 0) return 0;
+        int count = rank(hi) - rank(lo);
+        if (contains(hi)) count++;
+        return Math.max(0, count);
+    }
+
+    /** Returns the height of the BST, routing nodes included. */
+    public int height() {
+        int height = -1;
+        Queue<Node> level = new Queue<Node>();
+        Node x = head.right;
+        if (x != null) level.enqueue(x);
+        while (!level.isEmpty()) {
+            height++;
+            for (int i = level.size(); i > 0; i--) {
+                Node t = level.dequeue();
+                if (t.left  != null) level.enqueue(t.left);
+                if (t.right != null) level.enqueue(t.right);
+            }
+        }
+        return height;
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) throws InterruptedException {
+
+        final ConcurrentBST<Integer, Integer> bst = new ConcurrentBST<Integer, Integer>();
+        final int writers = 4;
+        final int perWriter = 10000;
+
+        // writers insert interleaved key ranges while a reader keeps looking up what it can see
+        Thread[] threads = new Thread[writers + 1];
+        for (int w = 0; w < writers; w++) {
+            final int offset = w;
+            threads[w] = new Thread(() -> {
+                java.util.Random random = new java.util.Random(offset);
+                for (int i = 0; i < perWriter; i++) {
+                    int key = random.nextInt(perWriter) * writers + offset;
+                    while (bst.contains(key)) key = random.nextInt(perWriter) * writers + offset;
+                    bst.put(key, i);
+                }
+            });
+        }
+        threads[writers] = new Thread(() -> {
+            for (int i = 0; i < 100000; i++) {
+                Integer key = bst.select(bst.size() / 2);
+                if (key != null && !bst.contains(key)) System.out.println("Lost key " + key);
+            }
+        });
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        System.out.println("Size after " + writers + " writer threads: " + bst.size());
+
+        // each writer now deletes the odd keys of its own range
+        for (int w = 0; w < writers; w++) {
+            final int offset = w;
+            threads[w] = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    int key = i * writers + offset;
+                    if (key % 2 == 1) bst.delete(key);
+                }
+            });
+        }
+        for (int w = 0; w < writers; w++) threads[w].start();
+        for (int w = 0; w < writers; w++) threads[w].join();
+        System.out.println("Size after deleting the odd keys: " + bst.size());
+    }
+}
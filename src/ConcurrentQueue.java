@@ -0,0 +1,356 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac ConcurrentQueue.java
+ *  Execution:    java ConcurrentQueue
+ *  Dependencies: Queue.java
+ *
+ *  A thread-safe, lock-free FIFO queue with the surface of Queue, for parallel traversals and
+ *  producer/consumer pipelines that would otherwise lock around every enqueue and dequeue.
+ *
+ *  This is the Michael-Scott queue: a singly linked list that always starts with a dummy node.
+ *  head points at the dummy and tail at (or just behind) the last node. An enqueue links a node
+ *  after the last one with a compare-and-set and then swings tail to it; a dequeue swings head
+ *  to the dummy's successor, which becomes the new dummy. Any thread that finds tail lagging
+ *  swings it forward itself, so no thread ever waits on another. head and tail are written by
+ *  every consumer and producer respectively, so they are padded onto separate cache lines.
+ *
+ *  enqueueAll() links a whole chain of nodes, built privately, with a single compare-and-set,
+ *  and drainTo() claims up to a given number of nodes with a single compare-and-set on head,
+ *  so batches pay one contended update instead of one per item.
+ *
+ *  size() walks the list and so takes linear time; like iteration it is only weakly consistent
+ *  while other threads are updating the queue. Null items are not allowed, so that poll() can
+ *  report an empty queue with null.
+ *
+ *  % java ConcurrentQueue
+ *  4 producers, 4 consumers: 400000 items dequeued, sum matches: true
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConcurrentQueue<Item> implements Iterable<Item> {
+
+    /** A list node; next is set once, when the node is linked */
+    private static class Node<Item> {
+        private volatile Item item;
+        private volatile Node<Item> next;
+
+        private Node(Item item) {
+            this.item = item;
+        }
+    }
+
+    /*
+     * head and tail live in one object, separated by padding. The JVM lays out superclass fields
+     * before subclass fields, so the chain of classes below puts at least 64 bytes of padding
+     * before head, between head and tail, and after tail.
+     */
+    private static class LeftPadding  { long p01, p02, p03, p04, p05, p06, p07, p08; }
+    private static class HeadField extends LeftPadding   { volatile Node<?> head; }
+    private static class MiddlePadding extends HeadField  { long p11, p12, p13, p14, p15, p16, p17, p18; }
+    private static class TailField extends MiddlePadding  { volatile Node<?> tail; }
+    private static class Ends extends TailField           { long p21, p22, p23, p24, p25, p26, p27, p28; }
+
+    private static final VarHandle HEAD, TAIL, NEXT;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(HeadField.class, "head", Node.class);
+            TAIL = lookup.findVarHandle(TailField.class, "tail", Node.class);
+            NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Ends ends = new Ends();
+
+    /**
+     * Initializes an empty queue.
+     */
+    public ConcurrentQueue() {
+        Node<Item> dummy = new Node<Item>(null);
+        ends.head = dummy;
+        ends.tail = dummy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<Item> head() {
+        return (Node<Item>) ends.head;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Node<Item> tail() {
+        return (Node<Item>) ends.tail;
+    }
+
+    /**
+     * Is this queue empty?
+     * @return true if this queue held no items at the moment it was checked
+     */
+    public boolean isEmpty() {
+        return head().next == null;
+    }
+
+    /**
+     * Returns the number of items in this queue, by counting them.
+     * @return the number of items, exact only if no other thread is updating the queue
+     */
+    public int size() {
+        int n = 0;
+        for (Node<Item> x = head().next; x != null; x = x.next)
+            if (++n == Integer.MAX_VALUE) break;
+        return n;
+    }
+
+    /**
+     * Adds the item to this queue.
+     * @param item the item to add
+     * @throws IllegalArgumentException if item is null
+     */
+    public void enqueue(Item item) {
+        if (item == null) throw new IllegalArgumentException("Item is null");
+        Node<Item> node = new Node<Item>(item);
+        link(node, node);
+    }
+
+    /**
+     * Adds the items to this queue, in iteration order, with a single contended update. Other
+     * threads see either none of the items or all of them, in order and together.
+     * @param items the items to add
+     * @throws IllegalArgumentException if any item is null; then none are added
+     */
+    public void enqueueAll(Iterable<? extends Item> items) {
+        Node<Item> first = null, last = null;
+        for (Item item : items) {
+            if (item == null) throw new IllegalArgumentException("Item is null");
+            Node<Item> node = new Node<Item>(item);
+            if (first == null) first = node;
+            else               last.next = node;    // private until linked below
+            last = node;
+        }
+        if (first != null) link(first, last);
+    }
+
+    /** Appends the private chain first..last after the last node and swings tail to last. */
+    private void link(Node<Item> first, Node<Item> last) {
+        while (true) {
+            Node<Item> t = tail();
+            Node<Item> next = t.next;
+            if (t != ends.tail) continue;
+            if (next != null) {
+                TAIL.compareAndSet(ends, t, next);          // help a lagging tail along
+                continue;
+            }
+            if (NEXT.compareAndSet(t, null, first)) {
+                // A helper may already have moved tail one node into the chain. While last is
+                // still the end of the list, tail lies somewhere in t..last, so keep swinging it
+                // to last rather than leaving it to be walked forward one node at a time.
+                Node<Item> lagging = t;
+                while (!TAIL.compareAndSet(ends, lagging, last)) {
+                    lagging = tail();
+                    if (lagging == last || last.next != null) break;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the item on this queue that was least recently added.
+     * @return the item on this queue that was least recently added
+     * @throws java.util.NoSuchElementException if this queue is empty
+     */
+    public Item dequeue() {
+        Item item = poll();
+        if (item == null) throw new NoSuchElementException("Queue underflow");
+        return item;
+    }
+
+    /**
+     * Removes and returns the item on this queue that was least recently added, if any.
+     * @return the item, or null if this queue is empty
+     */
+    public Item poll() {
+        while (true) {
+            Node<Item> h = head();
+            Node<Item> t = tail();
+            Node<Item> next = h.next;
+            if (h != ends.head) continue;
+            if (next == null) return null;
+            if (h == t) {
+                TAIL.compareAndSet(ends, t, next);          // never let head pass tail
+                continue;
+            }
+            Item item = next.item;
+            if (HEAD.compareAndSet(ends, h, next)) {
+                next.item = null;                           // next is the new dummy
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Returns the item least recently added to this queue.
+     * @return the item least recently added to this queue
+     * @throws java.util.NoSuchElementException if this queue is empty
+     */
+    public Item peek() {
+        while (true) {
+            Node<Item> h = head();
+            Node<Item> next = h.next;
+            if (next == null) throw new NoSuchElementException("Queue underflow");
+            Item item = next.item;
+            if (h == ends.head) return item;               // else next was dequeued meanwhile
+        }
+    }
+
+    /**
+     * Moves every item of this queue to the target, oldest first.
+     * @return the number of items moved
+     */
+    public int drainTo(Queue<? super Item> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves up to maxItems of the oldest items of this queue to the target, oldest first. The
+     * batch is claimed with a single contended update, so concurrent consumers draining the
+     * same queue each receive a contiguous run of items.
+     * @return the number of items moved
+     */
+    public int drainTo(Queue<? super Item> target, int maxItems) {
+        if (maxItems <= 0) return 0;
+        while (true) {
+            Node<Item> h = head();
+            Node<Item> t = tail();
+            if (h != ends.head) continue;
+            if (h.next == null) return 0;
+
+            // find the last node of the batch, helping tail past any node we are about to claim
+            Node<Item> last = h;
+            int n = 0;
+            boolean stale = false;
+            while (n < maxItems && last.next != null) {
+                if (last == t) {
+                    TAIL.compareAndSet(ends, t, last.next);
+                    t = tail();
+                }
+                last = last.next;
+                n++;
+                if (h != ends.head) { stale = true; break; }
+            }
+            if (stale) continue;
+
+            if (HEAD.compareAndSet(ends, h, last)) {
+                // the nodes h.next..last are ours alone; last is the new dummy
+                for (Node<Item> x = h.next; ; x = x.next) {
+                    target.enqueue(x.item);
+                    if (x == last) break;
+                    x.item = null;
+                }
+                last.item = null;
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Returns a string representation of this queue.
+     * @return the sequence of items in FIFO order, separated by spaces
+     */
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Item item : this)
+            s.append(item + " ");
+        return s.toString();
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the items in FIFO order: it never throws because
+     * of concurrent updates, and it may or may not see items added or removed after it was made.
+     */
+    public Iterator<Item> iterator() {
+        return new Iterator<Item>() {
+            private Node<Item> current = head();
+            private Item next = advance();
+
+            // moves to the next node that still holds an item
+            private Item advance() {
+                while ((current = current.next) != null) {
+                    Item item = current.item;
+                    if (item != null) return item;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Item next() {
+                if (next == null) throw new NoSuchElementException();
+                Item item = next;
+                next = advance();
+                return item;
+            }
+        };
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) throws InterruptedException {
+        final int producers = 4, consumers = 4, perProducer = 100000;
+        ConcurrentQueue<Integer> queue = new ConcurrentQueue<Integer>();
+        AtomicLong sum = new AtomicLong(), count = new AtomicLong();
+
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                Queue<Integer> batch = new Queue<Integer>();
+                for (int i = 0; i < perProducer; i++) {
+                    if (i % 2 == 0) queue.enqueue(base + i);
+                    else            batch.enqueue(base + i);
+                    if (batch.size() == 64) {
+                        queue.enqueueAll(batch);
+                        batch = new Queue<Integer>();
+                    }
+                }
+                queue.enqueueAll(batch);
+            });
+        }
+        for (int c = 0; c < consumers; c++) {
+            final boolean batched = c % 2 == 0;
+            threads[producers + c] = new Thread(() -> {
+                long total = (long) producers * perProducer;
+                while (count.get() < total) {
+                    if (batched) {
+                        Queue<Integer> batch = new Queue<Integer>();
+                        int n = queue.drainTo(batch, 32);
+                        for (int x : batch) sum.addAndGet(x);
+                        count.addAndGet(n);
+                    }
+                    else {
+                        Integer x = queue.poll();
+                        if (x == null) continue;
+                        sum.addAndGet(x);
+                        count.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        long n = (long) producers * perProducer;
+        System.out.println(producers + " producers, " + consumers + " consumers: " + count.get()
+                + " items dequeued, sum matches: " + (sum.get() == n * (n - 1) / 2));
+    }
+}
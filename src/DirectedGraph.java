@@ -1,8 +1,13 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map.Entry;
+import java.util.function.Function;
 import java.util.Scanner;
 
 /**
@@ -40,8 +45,10 @@ public class DirectedGraph {
         public LinkedList<Edge> adjacencyList = new LinkedList<Edge>();
         /** label for the vertex */
         public String label = null;
+        /** index of the vertex in order of creation, used by Search */
+        public final int id;
 
-        /** used in BFS and DFS */
+        /** used in BFS and DFS, filled in from the Search that ran last */
         public boolean discovered = false;
         public boolean visited = false;
         public String parent = null;
@@ -53,6 +60,8 @@ public class DirectedGraph {
         
         public Vertex(String label){
             this.label = label;
+            this.id = vertexList.size();
+            vertexList.add(this);
         }
         
         /** add an edge to the vertex with the given label */
@@ -86,9 +95,16 @@ public class DirectedGraph {
     
     /** stores the set of vertices in the graph. keyed by the name of the vertex. */
     public HashMap<String, Vertex> vertices = new HashMap<String, Vertex>();
-    
-    /** current finishing time. used by DFS */
-    private int time = 0;
+
+    /** every vertex, indexed by id */
+    private ArrayList<Vertex> vertexList = new ArrayList<Vertex>();
+
+    /** the Searches behind the search methods that record their results in the vertices, one
+      * per kind, so that a breadth first search knows whose distances to clear */
+    private Search bfs, dfs;
+
+    /** the Search whose results the vertices hold, or null */
+    private Search published;
     
     /** add the directed edge (v,u) to the graph along with the action that needs to be taken to make the move */
     public void addEdge(String vLabel, String uLabel, String action){
@@ -129,11 +145,13 @@ public class DirectedGraph {
             v.clear();   // clear adjacency list for v
         }
         vertices.clear();      // delete set of vertices
+        vertexList.clear();
+        bfs = dfs = published = null;
     }
     
     
     /** output the vertices and their edges and information relevant to BFS*/
-    public void displayBFS() {
+    public synchronized void displayBFS() {
         for (Entry<String, Vertex> vertexEntry: vertices.entrySet()){
             Vertex v = vertexEntry.getValue();
             System.out.print("Vertex: "+v.label+", d = "+v.distance+", ");
@@ -142,7 +160,7 @@ public class DirectedGraph {
     }
     
     /** output the vertices and their edges and information relevant to DFS */
-    public void displayDFS() {
+    public synchronized void displayDFS() {
         for (Entry<String, Vertex> vertexEntry: vertices.entrySet()){
             Vertex v = vertexEntry.getValue();
             System.out.print("Vertex: "+v.label);
@@ -154,122 +172,316 @@ public class DirectedGraph {
     
     
     /** perform a breadth-first search of the graph starting at 
-      * the vertex with given label */
-    public void breadthFirstSearch(String label) {
-        Vertex s = vertices.get(label);    // root of the graph
-        
-        // Initialize every vertex 
-        for (Entry<String, Vertex> vertexEntry: vertices.entrySet()) {
-            Vertex u = vertexEntry.getValue();
-            u.discovered = false;     // has it been added to the queue?
-            u.visited = false;        // has it been removed from the queue and explored? 
-            u.distance = Integer.MAX_VALUE;   // distance from the root of the graph (vertex s)
-            u.parent = null;          // parent in BFS tree of graph
-            u.parentAction = null;
-        }
-        
-        s.discovered = true;
-        s.distance = 0;
-        s.parentAction = null;
-        
-        // Create a queue of vertices to explore 
-        LinkedList<Vertex> q = new LinkedList<Vertex>();
-        q.addLast(s);
-        
-        while(q.isEmpty() == false) {
-            // remove next vertex, u, to explore from front of queue
-            Vertex u = q.remove();
-            
-            // check vertices this one is connected to
-            // if they have not been discovered yet (i.e. not explored and not in queue)
-            // then add them to the back of the queue
-            for(Edge e: u.adjacencyList){
-                Vertex v = vertices.get(e.vertexLabel);
-                // note that the v!=null will catch any vertices without edges leading away from them
-                if (v != null && v.discovered == false) {
-                    v.discovered = true;       // vertex has now been discovered 
-                    v.distance = u.distance + 1;
-                    v.parent = u.label;
-                    v.parentAction = e.action;
-                    q.addLast(v);              // add new vertex to end of the queue    
-                }
-            }
-            // we have finished exploring u, mark it as visited
-            u.visited = true;
-        }
+      * the vertex with given label, and record the result in the vertices.
+      * The searches that record their results in the vertices share those fields, so they run
+      * one at a time. Threads that want to search at once should each run their own Search
+      * and read its results, or print them with printPath(Search, ...). */
+    public synchronized void breadthFirstSearch(String label) {
+        if (bfs == null) bfs = new Search();
+        unpublish(true);
+        bfs.breadthFirstSearch(label);
+        publish(bfs);
     }
     
-    /** output the vertices on the path from s to v */
-    public void printPath(String sLabel, String vLabel){
+    /** output the vertices on the path from s to v found by the last search that recorded
+      * its result in the vertices */
+    public synchronized void printPath(String sLabel, String vLabel){
+        printPath(sLabel, vLabel, u -> u.parent, u -> u.parentAction);
+    }
+
+    /** output the vertices on the path from s to v in the search tree of the given Search */
+    public void printPath(Search search, String sLabel, String vLabel){
+        printPath(sLabel, vLabel, u -> search.parent(u.label), u -> search.parentAction(u.label));
+    }
+
+    private void printPath(String sLabel, String vLabel,
+                           Function<Vertex, String> parent, Function<Vertex, String> parentAction){
         Vertex s = vertices.get(sLabel);
         Vertex v = vertices.get(vLabel);
         
+        // follow the parents up from v, then print the path back down
+        LinkedList<Vertex> path = new LinkedList<Vertex>();
+        while (s != v && parent.apply(v) != null) {
+            path.addFirst(v);
+            v = vertices.get(parent.apply(v));
+        }
         if (s == v) {
             System.out.print("Start at " + sLabel);
-        } else if (v.parent == null) {
-            System.out.println("No path from "+s.label+" to "+v.label+" exists");
         } else {
-            printPath(s.label, v.parent);
-            System.out.print(", "+ v.parentAction + " " + v.label);
+            System.out.println("No path from "+s.label+" to "+v.label+" exists");
+        }
+        for (Vertex u: path) {
+            System.out.print(", "+ parentAction.apply(u) + " " + u.label);
         }
     }
     
-    /** perform depth first search of graph */
-    public void depthFirstSearch() {
-        // initialize every vertex
-        for (Entry<String, Vertex> vertexEntry: vertices.entrySet()) {
-            Vertex u = vertexEntry.getValue();
-            u.discovered = false;        // has the vertex been discovered?
-            u.visited = false;           // has the vertex been fully explored?
-            u.parent = null;             // parent in DFS tree in graph
-            u.parentAction = null;
-        }
-        
-        time = 0;       // finishing time -- time stamp recorded when the vertex was completely explored
-        for (Entry<String, Vertex> vertexEntry: vertices.entrySet()) {
-            Vertex u = vertexEntry.getValue();
-            if (u.discovered == false){
-                dfsVisit(u);      // treat u as root of graph and visit all vertices reachable from u
-            }
-        }  
+    /** perform depth first search of graph, and record the result in every vertex
+      * (not reentrant; see breadthFirstSearch) */
+    public synchronized void depthFirstSearch() {
+        if (dfs == null) dfs = new Search();
+        unpublish(false);
+        dfs.depthFirstSearch();
+        publish(dfs);
     }
     
-    /** recursively visit each vertex connected to vertex u */
-    private void dfsVisit(Vertex u){
-        time = time + 1;        // time stamp increments as each vertex is visited
-        u.discoveryTime = time;
-        u.discovered = true;
-        
-        // explore each edge (u,v)
-        // If a vertex v is undiscovered, then recursively visit it and its children
-        // If it has been discovered, ignore it
-        for(Edge e: u.adjacencyList){
-            Vertex v = vertices.get(e.vertexLabel);
-            if (v != null && v.discovered == false){
-                v.parent = u.label;
-                dfsVisit(v);
-                v.parentAction = e.action;
+    /** perform depth first search of graph starting at a node with a given label,
+      * and record the result in every vertex (not reentrant; see breadthFirstSearch) */
+    public synchronized void depthFirstSearch(String sLabel) {
+        if (dfs == null) dfs = new Search();
+        unpublish(false);
+        dfs.depthFirstSearch(sLabel);
+        publish(dfs);
+    }
+
+    /** clear what the last search recorded in the vertices, as the search methods have always
+      * reset them first; only the vertices that search discovered hold anything to clear.
+      * Distances are cleared only by a breadth first search, times never */
+    private void unpublish(boolean breadthFirst) {
+        if (published != null) {
+            for (int i = 0; i < published.discovered; i++) {
+                Vertex u = vertexList.get(published.order[i]);
+                u.discovered = false;
+                u.visited = false;
+                u.parent = null;
+                u.parentAction = null;
             }
         }
-        u.visited = true;
-        time = time + 1;      // time stamp increments as each vertex finished
-        u.finishingTime = time;
+        if (breadthFirst && bfs != null) {
+            for (int i = 0; i < bfs.discovered; i++)
+                vertexList.get(bfs.order[i]).distance = Integer.MAX_VALUE;
+        }
+        published = null;
     }
-    
-    /** perform depth first search of graph starting at a node with a given label*/
-    public void depthFirstSearch(String sLabel) {
-        for (Entry<String, Vertex> vertexEntry: vertices.entrySet()) {
-            Vertex u = vertexEntry.getValue();
-            u.discovered = false;
-            u.visited = false;
-            u.parent = null;
-            u.parentAction = null;
+
+    /** record the result of the search in the vertices it discovered */
+    private void publish(Search search) {
+        for (int i = 0; i < search.discovered; i++) {
+            int id = search.order[i];
+            Vertex u = vertexList.get(id);
+            u.discovered = true;
+            u.visited = search.visited.get(id);
+            u.parent = (search.parent[id] < 0) ? null : vertexList.get(search.parent[id]).label;
+            u.parentAction = search.parentAction[id];
+            if (search.breadthFirst) {
+                u.distance = search.distance[id];
+            } else {
+                u.discoveryTime = search.discoveryTime[id];
+                u.finishingTime = search.finishingTime[id];
+            }
+        }
+        published = search;
+    }
+
+    /**
+     * The state of one search of the graph, kept apart from the vertices so that any number
+     * of searches can run on the same graph at once, from different threads, as long as no
+     * thread changes the graph meanwhile.
+     *
+     * A Search can be reused for query after query. Vertices are addressed by id. A vertex
+     * counts as discovered only while it carries the generation stamp of the current query,
+     * so starting a query does not have to reset every vertex; the parent, distance and times
+     * of a vertex are only read while its stamp is current. Visited vertices are kept in a
+     * BitSet, which is cleared a word (64 vertices) at a time, so starting a query still costs
+     * O(V/64) rather than O(1).
+     */
+    public class Search {
+        /** generation stamp of the query that last discovered each vertex */
+        private int[] stamp = new int[0];
+        /** stamp of the current query; never 0, the stamp of a fresh array */
+        private int generation = 0;
+        /** ids of the vertices the current query discovered, in order of discovery */
+        private int[] order = new int[0];
+        private int discovered;
+        private BitSet visited = new BitSet();
+
+        /** results, indexed by vertex id; parent is -1 for none */
+        private int[] parent, distance, discoveryTime, finishingTime;
+        private String[] parentAction;
+
+        /** explicit stack of a depth first search: the ids of the vertices on the current
+          * path, and for each one the iterator over its remaining edges */
+        private int[] path;
+        private Iterator<Edge>[] edges;
+
+        /** the kind of the current query */
+        private boolean breadthFirst;
+        /** current time stamp of a depth first search */
+        private int time;
+
+        @SuppressWarnings("unchecked")
+        private Iterator<Edge>[] newIteratorArray(int n) {
+            return (Iterator<Edge>[]) new Iterator<?>[n];
+        }
+
+        /** forget the previous query and make room for every vertex */
+        private void start(boolean breadthFirst) {
+            int V = vertexList.size();
+            if (stamp.length < V) {
+                int n = Math.max(V, 2 * stamp.length);
+                stamp = new int[n];             // all stale: generation is never 0
+                parent = new int[n];
+                distance = new int[n];
+                discoveryTime = new int[n];
+                finishingTime = new int[n];
+                path = new int[n];
+                order = new int[n];
+                edges = newIteratorArray(n);
+                parentAction = new String[n];
+            }
+            generation++;
+            if (generation == 0) {
+                Arrays.fill(stamp, 0);          // after 2^32 queries
+                generation = 1;
+            }
+            visited.clear();
+            discovered = 0;
+            this.breadthFirst = breadthFirst;
+            time = 0;
+        }
+
+        /** mark v discovered from parent p (-1 for a root) along an edge with the given action */
+        private void discover(Vertex v, int p, String action) {
+            int i = v.id;
+            stamp[i] = generation;
+            order[discovered++] = i;
+            parent[i] = p;
+            parentAction[i] = action;
+            distance[i] = Integer.MAX_VALUE;
+            discoveryTime[i] = 0;
+            finishingTime[i] = 0;
+        }
+
+        private Vertex vertex(String label) {
+            Vertex v = vertices.get(label);
+            if (v == null) throw new IllegalArgumentException("No vertex " + label);
+            return v;
+        }
+
+        /** perform a breadth-first search of the graph starting at the vertex with given label */
+        public void breadthFirstSearch(String label) {
+            Vertex s = vertex(label);
+            start(true);
+            discover(s, -1, null);
+            distance[s.id] = 0;
+            
+            // queue of the ids of vertices to explore
+            IntQueue q = new IntQueue();
+            q.enqueue(s.id);
+            
+            while(q.isEmpty() == false) {
+                Vertex u = vertexList.get(q.dequeue());
+                for(Edge e: u.adjacencyList){
+                    Vertex v = vertices.get(e.vertexLabel);
+                    // v == null for a vertex without edges leading away from it
+                    if (v != null && !isDiscovered(v)) {
+                        discover(v, u.id, e.action);
+                        distance[v.id] = distance[u.id] + 1;
+                        q.enqueue(v.id);
+                    }
+                }
+                visited.set(u.id);
+            }
+        }
+
+        /** perform depth first search of graph, taking each undiscovered vertex as a root */
+        public void depthFirstSearch() {
+            start(false);
+            for (Vertex u: vertices.values()) {
+                if (!isDiscovered(u)) {
+                    discover(u, -1, null);
+                    dfsVisit(u);
+                }
+            }
+        }
+
+        /** perform depth first search of graph starting at a node with a given label */
+        public void depthFirstSearch(String sLabel) {
+            Vertex s = vertex(sLabel);
+            start(false);
+            discover(s, -1, null);
+            dfsVisit(s);
+        }
+
+        /** visit each vertex reachable from the discovered vertex s, depth first. The
+          * vertices on the current path are kept on an explicit stack instead of the thread's
+          * call stack, so the search can go as deep as the graph has vertices; the times and
+          * parents are those of the recursive visit. */
+        private void dfsVisit(Vertex s){
+            int depth = 0;
+            path[0] = s.id;
+            edges[0] = s.adjacencyList.iterator();
+            time = time + 1;        // time stamp increments as each vertex is visited
+            discoveryTime[s.id] = time;
+
+            while (depth >= 0) {
+                Vertex u = vertexList.get(path[depth]);
+                if (edges[depth].hasNext()) {
+                    // explore the next edge (u,v), descending into v if it is undiscovered
+                    Edge e = edges[depth].next();
+                    Vertex v = vertices.get(e.vertexLabel);
+                    if (v != null && !isDiscovered(v)){
+                        discover(v, u.id, e.action);
+                        time = time + 1;
+                        discoveryTime[v.id] = time;
+                        depth++;
+                        path[depth] = v.id;
+                        edges[depth] = v.adjacencyList.iterator();
+                    }
+                } else {
+                    // u is finished, return to its parent
+                    visited.set(u.id);
+                    time = time + 1;  // time stamp increments as each vertex finished
+                    finishingTime[u.id] = time;
+                    edges[depth] = null;
+                    depth--;
+                }
+            }
+        }
+
+        private boolean isDiscovered(Vertex v) {
+            return v.id < stamp.length && stamp[v.id] == generation;
+        }
+
+        /** results of the last query, for the vertex with given label */
+        public boolean isDiscovered(String label)  { return isDiscovered(vertex(label));      }
+        public boolean isVisited(String label)     { return visited.get(vertex(label).id);    }
+
+        public String parent(String label) {
+            Vertex v = vertex(label);
+            if (!isDiscovered(v) || parent[v.id] < 0) return null;
+            return vertexList.get(parent[v.id]).label;
+        }
+
+        public String parentAction(String label) {
+            Vertex v = vertex(label);
+            return isDiscovered(v) ? parentAction[v.id] : null;
+        }
+
+        public int distance(String label) {
+            Vertex v = vertex(label);
+            return isDiscovered(v) ? distance[v.id] : Integer.MAX_VALUE;
+        }
+
+        public int discoveryTime(String label) {
+            Vertex v = vertex(label);
+            return isDiscovered(v) ? discoveryTime[v.id] : 0;
+        }
+
+        public int finishingTime(String label) {
+            Vertex v = vertex(label);
+            return isDiscovered(v) ? finishingTime[v.id] : 0;
+        }
+
+        /** labels on the search tree path to the vertex with given label, from the root
+          * of its tree; empty if the vertex was not discovered */
+        public LinkedList<String> pathTo(String label) {
+            LinkedList<String> path = new LinkedList<String>();
+            Vertex v = vertex(label);
+            if (!isDiscovered(v)) return path;
+            for (int i = v.id; i >= 0; i = parent[i])
+                path.addFirst(vertexList.get(i).label);
+            return path;
         }
-        
-        time = 0;
-        Vertex u = vertices.get(sLabel);
-        // begin DFS of graph starting at vertex with given label
-        dfsVisit(u); 
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,428 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac DurableBST.java
+ *  Execution:    java DurableBST
+ *  Dependencies: BST.java BSTSnapshot.java
+ *
+ *  A BST whose mutations survive a crash, backed by a write-ahead log and periodic checkpoints.
+ *
+ *  Every put, delete, deleteMin and deleteMax is applied to an in-memory BST and appended to an
+ *  in-memory log buffer. A background thread writes the buffer to the log file and forces it to
+ *  disk once every sync interval, so many mutations share a single fsync (group commit) and a
+ *  write costs only the encoding of its log record. A crash loses at most the mutations of the
+ *  last sync interval; callers that need a particular write to be durable call sync().
+ *
+ *  If writing or forcing the log ever fails, the records it held may or may not be on disk, so
+ *  the table fails: reads still work, but every later write, sync() and close() throws, carrying
+ *  the original error, instead of acknowledging writes that might be lost. A failure of the
+ *  background thread is recorded the same way and reported to the next caller.
+ *
+ *  When the log grows past the checkpoint threshold, the entries of the tree are copied and the
+ *  pending records are forced to the log; only the copy is held under the table's lock. The
+ *  copy is then written to a snapshot (see BSTSnapshot) while readers and writers carry on,
+ *  atomically replaces the previous one, and finally the log is truncated. Opening a directory
+ *  loads the snapshot, then replays the log on top of it, stopping at the first torn or corrupt
+ *  record. If a crash leaves an old log next to a new snapshot, that log holds every mutation
+ *  since the previous snapshot, ending with the state the new snapshot captured, so replaying
+ *  it (every record just sets the state of one key) arrives back at the new snapshot.
+ *
+ *  Log record: int payload length, payload (byte operation, key, and value for a put), int CRC32.
+ *
+ *  % java DurableBST
+ *  Recovered 3 keys: a b d
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class DurableBST<Key extends Comparable<Key>, Value> implements Closeable {
+
+    /** Log operation codes */
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /** Default time between group commits */
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+    /** Default log size that triggers a checkpoint */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+    /** The in-memory table */
+    private final BST<Key, Value> bst;
+
+    private final BSTSnapshot.Codec<Key> keyCodec;
+    private final BSTSnapshot.Codec<Value> valueCodec;
+
+    /** Snapshot and log files */
+    private final Path snapshotFile, logFile;
+
+    /** Append-only log */
+    private final FileChannel log;
+
+    /** Encoded records not yet written to the log, guarded by this */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /** Scratch buffer for encoding one record, guarded by this */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    /** Serializes log writes, fsyncs and checkpoints; never held while waiting for this */
+    private final Object ioLock = new Object();
+
+    /** Log size at which a checkpoint is taken */
+    private final long checkpointBytes;
+
+    /** Background group-commit thread, woken early by close() */
+    private final Thread syncer;
+    private final Object wakeup = new Object();
+
+    private volatile boolean closed;
+
+    /** First error that may have lost logged records; once set, writes and syncs fail with it */
+    private volatile Throwable failure;
+
+    /** Opens (or creates) a durable BST in dir with the default sync interval and checkpoint size. */
+    public DurableBST(Path dir, BSTSnapshot.Codec<Key> keyCodec, BSTSnapshot.Codec<Value> valueCodec) throws IOException {
+        this(dir, keyCodec, valueCodec, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Opens (or creates) a durable BST stored in dir, recovering its contents from the latest
+     * snapshot and the log.
+     * @param syncIntervalMillis Time between group commits: the most a crash can lose.
+     * @param checkpointBytes Log size at which the tree is checkpointed and the log truncated.
+     */
+    public DurableBST(Path dir, BSTSnapshot.Codec<Key> keyCodec, BSTSnapshot.Codec<Value> valueCodec,
+                      long syncIntervalMillis, long checkpointBytes) throws IOException {
+        if (syncIntervalMillis <= 0) throw new IllegalArgumentException("Sync interval must be positive");
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.checkpointBytes = checkpointBytes;
+        Files.createDirectories(dir);
+        snapshotFile = dir.resolve("snapshot");
+        logFile = dir.resolve("wal");
+
+        if (Files.exists(snapshotFile)) bst = BSTSnapshot.open(snapshotFile, keyCodec, valueCodec).toBST();
+        else                            bst = new BST<Key, Value>();
+
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+
+        syncer = new Thread(() -> {
+            while (!closed) {
+                try {
+                    synchronized (wakeup) {
+                        if (!closed) wakeup.wait(syncIntervalMillis);
+                    }
+                    sync();
+                    if (log.size() >= checkpointBytes) checkpoint();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (IOException | RuntimeException e) {
+                    // reported by the next put, sync or close; retrying would ack lost records
+                    fail(e);
+                    return;
+                }
+            }
+        }, "DurableBST-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+   /**
+    * Recovery
+    */
+
+    /** Applies every intact log record to the tree and cuts off a torn or corrupt tail. */
+    private void replay() throws IOException {
+        long size = log.size();
+        long valid = 0;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        ByteBuffer in = ByteBuffer.allocate(256);
+        while (size - valid >= 4) {
+            // one record at a time, so a log of any size is read in bounded memory
+            header.clear();
+            if (!readFully(header, valid)) break;
+            int length = header.getInt(0);
+            if (length <= 0 || length > Integer.MAX_VALUE - 4 || size - valid - 4 < length + 4L) break;
+            if (in.capacity() < length + 4) in = ByteBuffer.allocate(length + 4);
+            in.clear();
+            in.limit(length + 4);
+            if (!readFully(in, valid + 4)) break;
+            crc.reset();
+            crc.update(in.array(), 0, length);
+            if (in.getInt(length) != (int) crc.getValue()) break;
+
+            in.position(0);
+            byte op = in.get();
+            Key key = keyCodec.read(in);
+            if (op == PUT) bst.put(key, valueCodec.read(in));
+            else           bst.delete(key);
+            valid += 4 + length + 4;
+        }
+        log.truncate(valid);
+        log.position(valid);
+    }
+
+    /** Fills buffer from the log starting at the given file position; false at end of file. */
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        return true;
+    }
+
+   /**
+    * Logging
+    */
+
+    /** Encodes a record into the pending buffer; called with this held. */
+    private void append(byte op, Key key, Value val) {
+        try {
+            record.reset();
+            recordOut.writeByte(op);
+            keyCodec.write(key, recordOut);
+            if (op == PUT) valueCodec.write(val, recordOut);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Cannot encode log record", e);    // in-memory stream
+        }
+        byte[] bytes = record.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        writeInt(pending, bytes.length);
+        pending.write(bytes, 0, bytes.length);
+        writeInt(pending, (int) crc.getValue());
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * Writes every mutation made so far to the log and forces it to disk. Once this returns, those
+     * mutations survive a crash.
+     */
+    public void sync() throws IOException {
+        synchronized (ioLock) {
+            checkHealthy();
+            ByteArrayOutputStream batch;
+            synchronized (this) {
+                batch = takePending();
+            }
+            writeLog(batch);
+        }
+    }
+
+    /** Detaches the records not yet written to the log; called with this held. */
+    private ByteArrayOutputStream takePending() {
+        ByteArrayOutputStream batch = pending;
+        pending = new ByteArrayOutputStream(Math.max(32, batch.size()));
+        return batch;
+    }
+
+    /**
+     * Writes a batch of records to the log and forces it; called with ioLock held. If that fails,
+     * part of the batch may be lost, so the table fails rather than let a later sync succeed.
+     */
+    private void writeLog(ByteArrayOutputStream batch) throws IOException {
+        if (batch.size() == 0) return;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) log.write(buffer);
+            log.force(false);
+        }
+        catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    /** Records the first failure that may have lost log records. */
+    private void fail(Throwable e) {
+        synchronized (ioLock) {
+            if (failure == null) failure = e;
+        }
+    }
+
+    private void checkHealthy() throws IOException {
+        Throwable e = failure;
+        if (e != null) throw new IOException("DurableBST log failed; later writes are not durable", e);
+    }
+
+    /**
+     * Writes the whole tree to a new snapshot, atomically replaces the old one with it and
+     * truncates the log. Readers and writers are held off only while the entries are copied.
+     */
+    @SuppressWarnings("unchecked")
+    public void checkpoint() throws IOException {
+        synchronized (ioLock) {
+            checkHealthy();
+            Comparable<Key>[] keys;
+            Object[] values;
+            ByteArrayOutputStream batch;
+            synchronized (this) {
+                keys = (Comparable<Key>[]) new Comparable<?>[bst.size()];
+                values = new Object[bst.size()];
+                int i = 0;
+                for (Map.Entry<Key, Value> entry : bst.entries()) {
+                    keys[i] = entry.getKey();
+                    values[i++] = entry.getValue();
+                }
+                batch = takePending();
+            }
+            // the log must hold everything the snapshot will, in case we crash before truncating it
+            writeLog(batch);
+
+            Path temp = snapshotFile.resolveSibling("snapshot.tmp");
+            BSTSnapshot.write(BST.fromSorted((Key[]) keys, (Value[]) values), temp, keyCodec, valueCodec);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+
+            // records appended since the copy are still pending, and go to the emptied log
+            log.truncate(0);
+            log.position(0);
+            log.force(true);
+        }
+    }
+
+    /**
+     * Forces the directory entry of the renamed snapshot to disk, so that the rename cannot be
+     * lost in a crash that the truncation of the log survives. Platforms that cannot open a
+     * directory (Windows) make renames durable on their own.
+     */
+    private void syncDirectory() throws IOException {
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(snapshotFile.getParent(), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return;
+        }
+        try (FileChannel channel = dir) {
+            channel.force(true);
+        }
+    }
+
+    /** Syncs the log and stops the background thread. */
+    public void close() throws IOException {
+        // no interrupt: that would close the log channel under an in-flight write
+        synchronized (wakeup) {
+            closed = true;
+            wakeup.notifyAll();
+        }
+        try {
+            syncer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sync();
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("DurableBST is closed");
+        if (failure != null) throw new IllegalStateException("DurableBST log failed; writes are refused", failure);
+    }
+
+   /**
+    * Symbol table operations, each applied to the in-memory tree
+    */
+
+    public synchronized void put(Key key, Value val) {
+        checkOpen();
+        if (val == null) { delete(key); return; }
+        bst.put(key, val);
+        append(PUT, key, val);
+    }
+
+    public synchronized void delete(Key key) {
+        checkOpen();
+        if (!bst.contains(key)) return;
+        bst.delete(key);
+        append(DELETE, key, null);
+    }
+
+    public synchronized void deleteMin() {
+        checkOpen();
+        Key key = bst.min();
+        bst.deleteMin();        // throws on an empty table before anything is logged
+        append(DELETE, key, null);
+    }
+
+    public synchronized void deleteMax() {
+        checkOpen();
+        Key key = bst.max();
+        bst.deleteMax();
+        append(DELETE, key, null);
+    }
+
+    public synchronized Value get(Key key)             { return bst.get(key);        }
+    public synchronized boolean contains(Key key)      { return bst.contains(key);   }
+    public synchronized int size()                     { return bst.size();          }
+    public synchronized boolean isEmpty()              { return bst.isEmpty();       }
+    public synchronized Key min()                      { return bst.min();           }
+    public synchronized Key max()                      { return bst.max();           }
+    public synchronized Key floor(Key key)             { return bst.floor(key);      }
+    public synchronized Key ceiling(Key key)           { return bst.ceiling(key);    }
+    public synchronized Key select(int k)              { return bst.select(k);       }
+    public synchronized int rank(Key key)              { return bst.rank(key);       }
+    public synchronized int size(Key lo, Key hi)       { return bst.size(lo, hi);    }
+
+    /** Returns a copy of the keys in [lo, hi], so the result stays valid under later writes. */
+    public synchronized Iterable<Key> keys(Key lo, Key hi) {
+        Queue<Key> queue = new Queue<Key>();
+        for (Key key : bst.keys(lo, hi)) queue.enqueue(key);
+        return queue;
+    }
+
+    public Iterable<Key> keys() {
+        return keys(null, null);
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("durable-bst");
+
+        DurableBST<String, Integer> table = new DurableBST<String, Integer>(dir, BSTSnapshot.STRING, BSTSnapshot.INTEGER);
+        table.put("a", 1);
+        table.put("b", 2);
+        table.put("c", 3);
+        table.checkpoint();
+        table.put("d", 4);
+        table.delete("c");
+        table.close();
+
+        DurableBST<String, Integer> recovered = new DurableBST<String, Integer>(dir, BSTSnapshot.STRING, BSTSnapshot.INTEGER);
+        System.out.print("Recovered " + recovered.size() + " keys: ");
+        for (String key : recovered.keys()) System.out.print(key + " ");
+        System.out.println();
+        recovered.close();
+    }
+}
@@ -0,0 +1,410 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac LongBST.java
+ *  Execution:    java LongBST
+ *
+ *  A symbol table with primitive long keys implemented with an array-backed binary search tree.
+ *
+ *  Instead of one Node object per key, the tree keeps its keys, child links and subtree counts in
+ *  parallel primitive arrays indexed by node number, so a key costs no boxing and no object header.
+ *  Slots freed by deletions are chained into a free list and reused by later insertions.
+ *  Lookups that find nothing (floor of a key below the minimum, for example) throw
+ *  NoSuchElementException since there is no null long to return.
+ *
+ *  % java LongBST
+ *  floor(25) = 20, ceiling(25) = 30, rank(30) = 2, select(1) = 20
+ *  keys(15, 45): 20 30 40
+ */
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+public class LongBST<Value> {
+
+    /** Link value meaning "no node" */
+    private static final int NIL = -1;
+
+    /** Key stored at each node */
+    private long[] keys;
+
+    /** Data associated with the key of each node */
+    private Object[] vals;
+
+    /** Left and Right children of each node, NIL if absent */
+    private int[] left, right;
+
+    /** Number of nodes in the subtree rooted at each node */
+    private int[] N;
+
+    /** Binary Search Tree's (BST's) Root */
+    private int root = NIL;
+
+    /** Head of the list of freed slots, chained through left[] */
+    private int free = NIL;
+
+    /** Number of slots ever handed out; slots at and above this index have never been used */
+    private int used = 0;
+
+    /** Initializes an empty tree. */
+    public LongBST() {
+        this(16);
+    }
+
+    /**
+     * Initializes an empty tree with room for the given number of keys before growing.
+     * @param capacity the initial capacity
+     */
+    public LongBST(int capacity) {
+        if (capacity < 1) capacity = 1;
+        keys  = new long[capacity];
+        vals  = new Object[capacity];
+        left  = new int[capacity];
+        right = new int[capacity];
+        N     = new int[capacity];
+    }
+
+    /** Check to see if BST is empty */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Return size of BST */
+    public int size() {
+        return size(root);
+    }
+
+    /** Return number of keys in the subtree rooted at node x. */
+    private int size(int x) {
+        if (x == NIL) return 0;
+        else return N[x];
+    }
+
+    /** Checks the search tree to see if there exists a value with a given key. */
+    public boolean contains(long key) {
+        return find(key) != NIL;
+    }
+
+    /** Return a value associated with a given key, or null if no such key exists. */
+    @SuppressWarnings("unchecked")
+    public Value get(long key) {
+        int x = find(key);
+        if (x == NIL) return null;
+        return (Value) vals[x];
+    }
+
+    /** Returns the node holding key, or NIL. */
+    private int find(long key) {
+        int x = root;
+        while (x != NIL) {
+            long k = keys[x];
+            if      (key < k) x = left[x];
+            else if (key > k) x = right[x];
+            else              return x;
+        }
+        return NIL;
+    }
+
+   /**
+    * Insert key-value pair into BST
+    * If key already exists, update with new value
+    */
+    public void put(long key, Value val) {
+        if (val == null) { delete(key); return; }
+
+        // first pass: if the key is already present just replace its value, no counts change
+        int x = find(key);
+        if (x != NIL) { vals[x] = val; return; }
+
+        // second pass: the key is new, so every node on the search path gains one descendant
+        int node = allocate(key, val);
+        if (root == NIL) { root = node; return; }
+        x = root;
+        while (true) {
+            N[x]++;
+            if (key < keys[x]) {
+                if (left[x] == NIL) { left[x] = node; return; }
+                x = left[x];
+            }
+            else {
+                if (right[x] == NIL) { right[x] = node; return; }
+                x = right[x];
+            }
+        }
+    }
+
+    /** Hands out a slot for a new leaf, reusing a freed one when possible. */
+    private int allocate(long key, Value val) {
+        int x;
+        if (free != NIL) {
+            x = free;
+            free = left[x];
+        }
+        else {
+            if (used == keys.length) resize(2 * keys.length);
+            x = used++;
+        }
+        keys[x] = key;
+        vals[x] = val;
+        left[x] = NIL;
+        right[x] = NIL;
+        N[x] = 1;
+        return x;
+    }
+
+    /** Returns slot x to the free list. */
+    private void release(int x) {
+        vals[x] = null;     // to avoid loitering
+        left[x] = free;
+        free = x;
+    }
+
+    private void resize(int capacity) {
+        keys  = Arrays.copyOf(keys,  capacity);
+        vals  = Arrays.copyOf(vals,  capacity);
+        left  = Arrays.copyOf(left,  capacity);
+        right = Arrays.copyOf(right, capacity);
+        N     = Arrays.copyOf(N,     capacity);
+    }
+
+   /**
+    *  Deletion
+    */
+
+    public void deleteMin() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        root = deleteMin(root, true);
+    }
+
+    /**
+     * Unlinks the minimum of the non-empty subtree rooted at x.
+     * @param release whether the unlinked slot goes back to the free list
+     * @return the new root of the subtree.
+     */
+    private int deleteMin(int x, boolean release) {
+        if (left[x] == NIL) {
+            int r = right[x];
+            if (release) release(x);
+            return r;
+        }
+        // walk down the left spine to the parent of the minimum, decrementing counts on the way
+        int t = x;
+        while (left[left[t]] != NIL) {
+            N[t]--;
+            t = left[t];
+        }
+        N[t]--;
+        int min = left[t];
+        left[t] = right[min];
+        if (release) release(min);
+        return x;
+    }
+
+    public void deleteMax() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        int x = root;
+        if (right[x] == NIL) {
+            root = left[x];
+            release(x);
+            return;
+        }
+        // walk down the right spine to the parent of the maximum, decrementing counts on the way
+        while (right[right[x]] != NIL) {
+            N[x]--;
+            x = right[x];
+        }
+        N[x]--;
+        int max = right[x];
+        right[x] = left[max];
+        release(max);
+    }
+
+    public void delete(long key) {
+        if (!contains(key)) return;
+
+        // find the node and its parent, decrementing the counts of its ancestors
+        int parent = NIL;
+        int t = root;
+        while (keys[t] != key) {
+            N[t]--;
+            parent = t;
+            if (key < keys[t]) t = left[t];
+            else               t = right[t];
+        }
+
+        // splice t out, replacing it with its successor when it has two children (Hibbard deletion)
+        int replacement;
+        if      (right[t] == NIL) replacement = left[t];
+        else if (left[t]  == NIL) replacement = right[t];
+        else {
+            replacement = right[t];
+            while (left[replacement] != NIL) replacement = left[replacement];
+            right[replacement] = deleteMin(right[t], false);
+            left[replacement] = left[t];
+            N[replacement] = size(left[replacement]) + size(right[replacement]) + 1;
+        }
+        release(t);
+
+        if (parent == NIL)          root = replacement;
+        else if (left[parent] == t) left[parent] = replacement;
+        else                        right[parent] = replacement;
+    }
+
+   /**
+    * Min, max, floor, and ceiling
+    */
+    public long min() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table is empty");
+        int x = root;
+        while (left[x] != NIL) x = left[x];
+        return keys[x];
+    }
+
+    public long max() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table is empty");
+        int x = root;
+        while (right[x] != NIL) x = right[x];
+        return keys[x];
+    }
+
+    /** Returns the largest key less than or equal to key. */
+    public long floor(long key) {
+        int x = root;
+        int best = NIL;
+        while (x != NIL) {
+            long k = keys[x];
+            if (key == k) return k;
+            if (key <  k) x = left[x];
+            else        { best = x; x = right[x]; }
+        }
+        if (best == NIL) throw new NoSuchElementException("No key less than or equal to " + key);
+        return keys[best];
+    }
+
+    /** Returns the smallest key greater than or equal to key. */
+    public long ceiling(long key) {
+        int x = root;
+        int best = NIL;
+        while (x != NIL) {
+            long k = keys[x];
+            if (key == k) return k;
+            if (key >  k) x = right[x];
+            else        { best = x; x = left[x]; }
+        }
+        if (best == NIL) throw new NoSuchElementException("No key greater than or equal to " + key);
+        return keys[best];
+    }
+
+   /**
+    * Rank and selection
+    */
+
+    /** Returns the key of rank k, i.e. the key with exactly k smaller keys in the tree. */
+    public long select(int k) {
+        if (k < 0 || k >= size()) throw new NoSuchElementException("No key of rank " + k);
+        int x = root;
+        while (true) {
+            int t = size(left[x]);
+            if      (t > k) x = left[x];
+            else if (t < k) { k = k - t - 1; x = right[x]; }
+            else            return keys[x];
+        }
+    }
+
+    /** Number of keys in the tree less than key. */
+    public int rank(long key) {
+        int x = root;
+        int r = 0;
+        while (x != NIL) {
+            long k = keys[x];
+            if      (key < k) x = left[x];
+            else if (key > k) { r += 1 + size(left[x]); x = right[x]; }
+            else              return r + size(left[x]);
+        }
+        return r;
+    }
+
+   /**
+    * Range count and range search.
+    */
+
+    /** Returns all keys in ascending order. */
+    public long[] keys() {
+        if (isEmpty()) return new long[0];
+        return keys(min(), max());
+    }
+
+    /** Returns the keys in [lo, hi] in ascending order. */
+    public long[] keys(long lo, long hi) {
+        long[] result = new long[size(lo, hi)];
+        if (result.length == 0) return result;
+
+        // explicit-stack in-order walk, starting from the path to lo
+        int[] stack = new int[16];
+        int depth = 0;
+        int x = root;
+        while (x != NIL) {
+            if (lo <= keys[x]) {
+                if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+                stack[depth++] = x;
+                if (lo == keys[x]) break;
+                x = left[x];
+            }
+            else x = right[x];
+        }
+        for (int i = 0; i < result.length; i++) {
+            x = stack[--depth];
+            result[i] = keys[x];
+            for (int t = right[x]; t != NIL; t = left[t]) {
+                if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+                stack[depth++] = t;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of keys in [lo, hi]. */
+    public int size(long lo, long hi) {
+        if (lo > hi) return 0;
+        if (contains(hi)) return rank(hi) - rank(lo) + 1;
+        else              return rank(hi) - rank(lo);
+    }
+
+    /** Returns the height of the BST. */
+    public int height() {
+        if (isEmpty()) return -1;
+        // level order traversal over node numbers, counting levels
+        int[] level = { root };
+        int count = 1;
+        int height = -1;
+        while (count > 0) {
+            height++;
+            int[] next = new int[2 * count];
+            int nextCount = 0;
+            for (int i = 0; i < count; i++) {
+                int x = level[i];
+                if (left[x]  != NIL) next[nextCount++] = left[x];
+                if (right[x] != NIL) next[nextCount++] = right[x];
+            }
+            level = next;
+            count = nextCount;
+        }
+        return height;
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+        LongBST<String> bst = new LongBST<String>();
+        long[] ids = { 30, 10, 50, 20, 40 };
+        for (long id : ids)
+            bst.put(id, "id-" + id);
+
+        System.out.println("floor(25) = " + bst.floor(25) + ", ceiling(25) = " + bst.ceiling(25)
+                + ", rank(30) = " + bst.rank(30) + ", select(1) = " + bst.select(1));
+        System.out.print("keys(15, 45): ");
+        for (long key : bst.keys(15, 45))
+            System.out.print(key + " ");
+        System.out.println();
+    }
+}
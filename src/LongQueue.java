@@ -0,0 +1,154 @@
+/*************************************************************************
+ *  Compilation:  javac LongQueue.java
+ *  Execution:    java LongQueue < input.txt
+ *
+ *  A queue of long values, implemented using a resizing circular array.
+ *
+ *  % echo 1 2 3 - 4 - - 5 | java LongQueue
+ *  1 2 3 (2 left on queue)
+ *
+ *************************************************************************/
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ *  The <tt>LongQueue</tt> class represents a first-in-first-out (FIFO) queue of
+ *  long values, such as a list of edge keys or timestamps.
+ *  It is the {@link Queue} implementation specialized to a long array, so no
+ *  value is ever boxed. Iterate with nextLong()
+ *  of the <tt>PrimitiveIterator.OfLong</tt> to read the values without boxing them.
+ *  Unlike <tt>Queue</tt> the array never shrinks, so a frontier reused with
+ *  {@link #clear()} settles at its largest size and stops allocating.
+ *  <p>
+ *  The <em>enqueue</em> and <em>dequeue</em> operations take constant amortized time;
+ *  the <em>peek</em>, <em>size</em>, and <em>is-empty</em> operations take constant time
+ *  in the worst case.
+ */
+public class LongQueue implements Iterable<Long> {
+    private long[] q;            // queue elements, a power of two in length
+    private int N;               // number of elements on queue
+    private int first;           // index of first element of queue
+
+    /**
+     * Initializes an empty queue.
+     */
+    public LongQueue() {
+        this(0);
+    }
+
+    /**
+     * Initializes an empty queue with room for the given number of values before it resizes.
+     * @param capacity the expected number of values
+     */
+    public LongQueue(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Queue capacity must not be negative");
+        q = new long[Queue.capacityFor(capacity)];
+    }
+
+    public boolean isEmpty()  { return N == 0;  }
+    public int size()         { return N;       }
+
+    // move the values to a new array of the given length, the first one at index 0
+    private void resize(int capacity) {
+        long[] temp = new long[capacity];
+        int head = Math.min(N, q.length - first);
+        System.arraycopy(q, first, temp, 0, head);
+        System.arraycopy(q, 0, temp, head, N - head);
+        q = temp;
+        first = 0;
+    }
+
+    /**
+     * Returns the value least recently added to this queue.
+     * @throws java.util.NoSuchElementException if this queue is empty
+     */
+    public long peek() {
+        if (isEmpty()) throw new NoSuchElementException("Queue underflow");
+        return q[first];
+    }
+
+    /**
+     * Adds the value to this queue.
+     */
+    public void enqueue(long x) {
+        if (N == q.length) {
+            if (N == 1 << 30) throw new IllegalStateException("Queue overflow");
+            resize(2 * q.length);
+        }
+        q[(first + N) & (q.length - 1)] = x;
+        N++;
+    }
+
+    /**
+     * Removes and returns the value on this queue that was least recently added.
+     * @throws java.util.NoSuchElementException if this queue is empty
+     */
+    public long dequeue() {
+        if (isEmpty()) throw new NoSuchElementException("Queue underflow");
+        long x = q[first];
+        first = (first + 1) & (q.length - 1);
+        N--;
+        return x;
+    }
+
+    /**
+     * Removes every value, keeping the array for reuse.
+     */
+    public void clear() {
+        N = 0;
+        first = 0;
+    }
+
+    /**
+     * Returns the values in FIFO order.
+     */
+    public long[] toArray() {
+        long[] a = new long[N];
+        int head = Math.min(N, q.length - first);
+        System.arraycopy(q, first, a, 0, head);
+        System.arraycopy(q, 0, a, head, N - head);
+        return a;
+    }
+
+    /**
+     * Returns a string representation of this queue.
+     * @return the sequence of values in FIFO order, separated by spaces
+     */
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < N; i++)
+            s.append(q[(first + i) & (q.length - 1)]).append(' ');
+        return s.toString();
+    }
+
+    /**
+     * Returns an iterator over the values in FIFO order; call nextLong() to avoid boxing.
+     */
+    public PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            private int i = 0;
+
+            public boolean hasNext()  { return i < N; }
+
+            public long nextLong() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return q[(first + i++) & (q.length - 1)];
+            }
+        };
+    }
+
+
+    /**
+     * Unit tests the <tt>LongQueue</tt> data type.
+     */
+    public static void main(String[] args) {
+        LongQueue q = new LongQueue();
+        while (!StdIn.isEmpty()) {
+            String item = StdIn.readString();
+            if (!item.equals("-")) q.enqueue(Long.parseLong(item));
+            else if (!q.isEmpty()) StdOut.print(q.dequeue() + " ");
+        }
+        StdOut.println("(" + q.size() + " left on queue)");
+    }
+}
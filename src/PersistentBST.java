@@ -0,0 +1,508 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac PersistentBST.java
+ *  Execution:    java PersistentBST
+ *  Dependencies: Queue.java
+ *
+ *  A persistent symbol table implemented with a path-copying binary search tree.
+ *
+ *  Nodes are never modified once created: put and delete copy only the O(height) nodes on the
+ *  search path and share everything else with the previous version, then publish the new
+ *  version with a single compare-and-set, redoing the copy if another writer got there first.
+ *  That makes snapshot() an O(1) operation: the snapshot simply keeps the current version, and
+ *  stays valid (and unchanged) no matter how many updates are applied to the live tree
+ *  afterwards. Readers of a snapshot, or of the live tree, can get, iterate, rank and select
+ *  without any locking; subtree counts always belong to the same version as the keys, so rank
+ *  and select are exact for the version read.
+ *
+ *  Every update that changes the tree numbers a new version, and version() reports the number
+ *  a tree or snapshot holds. restore() makes an earlier snapshot the current version again in
+ *  O(1) time, e.g. to roll back a failed batch of updates; it is itself a new version.
+ *
+ *  The tree is not balanced, so height (and with it every operation) is O(N) in the worst case,
+ *  e.g. for keys inserted in order.
+ *
+ *  % java PersistentBST
+ *  Snapshot size: 5, live size: 5
+ *  Snapshot keys: 10 20 30 40 50
+ *  Live keys: 20 30 40 50 60
+ *  Restored version 5 as version 10: 10 20 30 40 50
+ */
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PersistentBST<Key extends Comparable<Key>, Value> {
+
+    /** The current version of the tree */
+    private final AtomicReference<Version> current;
+
+    /** Whether this tree is a read-only snapshot */
+    private final boolean frozen;
+
+    /** An immutable BST Node */
+    private class Node {
+
+        /** Key that determine position of data in BST. */
+        private final Key key;
+
+        /** Data associated with key */
+        private final Value val;
+
+        /** Left and Right children, potentially parents of subtrees */
+        private final Node left, right;
+
+        /** Number of nodes in subtree */
+        private final int N;
+
+        /** Node Constructor */
+        public Node(Key key, Value val, Node left, Node right, int N) {
+            this.key = key;
+            this.val = val;
+            this.left = left;
+            this.right = right;
+            this.N = N;
+        }
+    }
+
+    /** A root together with the number of the update that produced it */
+    private class Version {
+        private final Node root;
+        private final long number;
+
+        public Version(Node root, long number) {
+            this.root = root;
+            this.number = number;
+        }
+    }
+
+    /** Initializes an empty, writable tree. */
+    public PersistentBST() {
+        this.current = new AtomicReference<Version>(new Version(null, 0));
+        this.frozen = false;
+    }
+
+    private PersistentBST(Version version) {
+        this.current = new AtomicReference<Version>(version);
+        this.frozen = true;
+    }
+
+    /** Returns the root of the current version. */
+    private Node root() {
+        return current.get().root;
+    }
+
+    /**
+     * Makes root the current version, unless another update replaced expected first.
+     * @return false if the update must be redone against the new current version.
+     */
+    private boolean publish(Version expected, Node root) {
+        if (root == expected.root) return true;
+        return current.compareAndSet(expected, new Version(root, expected.number + 1));
+    }
+
+    /**
+     * Returns an immutable view of the current version of the tree in O(1) time. Later updates to
+     * this tree are not visible through the snapshot.
+     */
+    public PersistentBST<Key, Value> snapshot() {
+        if (frozen) return this;
+        return new PersistentBST<Key, Value>(current.get());
+    }
+
+    /** Returns the number of updates that led to this version of the tree. */
+    public long version() {
+        return current.get().number;
+    }
+
+    /**
+     * Makes the contents of an earlier snapshot the current version of this tree, in O(1) time.
+     * Snapshots taken since are unaffected.
+     * @throws IllegalArgumentException if snapshot is not a snapshot.
+     */
+    public void restore(PersistentBST<Key, Value> snapshot) {
+        checkWritable();
+        if (!snapshot.isSnapshot()) throw new IllegalArgumentException("Can only restore a snapshot");
+        Node root = snapshot.root();
+        while (true) {
+            Version version = current.get();
+            if (current.compareAndSet(version, new Version(root, version.number + 1))) return;
+        }
+    }
+
+    /** Is this tree a read-only snapshot? */
+    public boolean isSnapshot() {
+        return frozen;
+    }
+
+    /** Throws if this tree is a snapshot. */
+    private void checkWritable() {
+        if (frozen) throw new UnsupportedOperationException("Snapshot is read-only");
+    }
+
+    /** Check to see if BST is empty */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Return size of BST */
+    public int size() {
+        return size(root());
+    }
+
+    /**
+     * Return number of key-value pairs in BST at a certain root.
+     * @param x the Node to examine as the root.
+     */
+    private int size(Node x) {
+        if (x == null) return 0;
+        else return x.N;
+    }
+
+    /**
+     * Checks the search tree to see if there exists a value with a given key.
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /** Return a value associated with a given key, or null if no such key exists. */
+    public Value get(Key key) {
+        Node x = root();
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) x = x.right;
+            else              return x.val;
+        }
+        return null;
+    }
+
+   /**
+    * Insert key-value pair into BST
+    * If key already exists, update with new value
+    */
+    public void put(Key key, Value val) {
+        checkWritable();
+        if (val == null) { delete(key); return; }
+        while (true) {
+            Version version = current.get();
+            if (publish(version, put(version.root, key, val))) return;
+        }
+    }
+
+    /**
+     * Returns a new version of the tree rooted at x that contains key-value pair, sharing every
+     * node that is not on the search path for key.
+     */
+    private Node put(Node x, Key key, Value val) {
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        Node t = x;
+        while (t != null) {
+            int cmp = key.compareTo(t.key);
+            if (cmp == 0) break;
+            path.push(t);
+            if (cmp < 0) t = t.left;
+            else         t = t.right;
+        }
+
+        if (t == null) return copyPath(path, key, new Node(key, val, null, null, 1), 1);
+        if (t.val == val) return x;
+        return copyPath(path, key, new Node(t.key, val, t.left, t.right, t.N), 0);
+    }
+
+   /**
+    *  Deletion
+    */
+
+    public void deleteMin() {
+        checkWritable();
+        while (true) {
+            Version version = current.get();
+            if (version.root == null) throw new NoSuchElementException("Symbol table underflow");
+            if (publish(version, deleteMin(version.root))) return;
+        }
+    }
+
+    /** Returns a new version of the non-empty tree rooted at x without its minimum. */
+    private Node deleteMin(Node x) {
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        for (; x.left != null; x = x.left) path.push(x);
+        Node child = x.right;
+        while (!path.isEmpty()) {
+            Node p = path.pop();
+            child = new Node(p.key, p.val, child, p.right, p.N - 1);
+        }
+        return child;
+    }
+
+    public void deleteMax() {
+        checkWritable();
+        while (true) {
+            Version version = current.get();
+            if (version.root == null) throw new NoSuchElementException("Symbol table underflow");
+            if (publish(version, deleteMax(version.root))) return;
+        }
+    }
+
+    /** Returns a new version of the non-empty tree rooted at x without its maximum. */
+    private Node deleteMax(Node x) {
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        for (; x.right != null; x = x.right) path.push(x);
+        Node child = x.left;
+        while (!path.isEmpty()) {
+            Node p = path.pop();
+            child = new Node(p.key, p.val, p.left, child, p.N - 1);
+        }
+        return child;
+    }
+
+    public void delete(Key key) {
+        checkWritable();
+        while (true) {
+            Version version = current.get();
+            if (publish(version, delete(version.root, key))) return;
+        }
+    }
+
+    /**
+     * Returns a new version of the tree rooted at x without key, or x itself if key is absent.
+     */
+    private Node delete(Node x, Key key) {
+        ArrayDeque<Node> path = new ArrayDeque<Node>();
+        Node t = x;
+        while (t != null) {
+            int cmp = key.compareTo(t.key);
+            if (cmp == 0) break;
+            path.push(t);
+            if (cmp < 0) t = t.left;
+            else         t = t.right;
+        }
+        if (t == null) return x;
+
+        // replace t with its successor when it has two children (Hibbard deletion)
+        Node replacement;
+        if      (t.right == null) replacement = t.left;
+        else if (t.left  == null) replacement = t.right;
+        else {
+            Node successor = min(t.right);
+            replacement = new Node(successor.key, successor.val, t.left, deleteMin(t.right), t.N - 1);
+        }
+        return copyPath(path, key, replacement, -1);
+    }
+
+    /**
+     * Rebuilds the search path for key bottom up, hanging child where the path ended.
+     * @param path Ancestors of the changed position, the deepest one on top.
+     * @param key Key whose search path is being copied.
+     * @param child New subtree at the end of the path.
+     * @param delta Change in the number of keys below every ancestor.
+     * @return the root of the new version.
+     */
+    private Node copyPath(ArrayDeque<Node> path, Key key, Node child, int delta) {
+        while (!path.isEmpty()) {
+            Node p = path.pop();
+            if (key.compareTo(p.key) < 0) child = new Node(p.key, p.val, child, p.right, p.N + delta);
+            else                          child = new Node(p.key, p.val, p.left, child, p.N + delta);
+        }
+        return child;
+    }
+
+   /**
+    * Min, max, floor, and ceiling
+    */
+    public Key min() {
+        Node x = root();
+        if (x == null) return null;
+        return min(x).key;
+    }
+
+    private Node min(Node x) {
+        while (x.left != null) x = x.left;
+        return x;
+    }
+
+    public Key max() {
+        Node x = root();
+        if (x == null) return null;
+        while (x.right != null) x = x.right;
+        return x.key;
+    }
+
+    public Key floor(Key key) {
+        Node x = root();
+        Node best = null;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) return x.key;
+            if (cmp <  0) x = x.left;
+            else        { best = x; x = x.right; }
+        }
+        if (best == null) return null;
+        else return best.key;
+    }
+
+    public Key ceiling(Key key) {
+        Node x = root();
+        Node best = null;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) return x.key;
+            if (cmp >  0) x = x.right;
+            else        { best = x; x = x.left; }
+        }
+        if (best == null) return null;
+        else return best.key;
+    }
+
+   /**
+    * Rank and selection
+    */
+    public Key select(int k) {
+        Node x = root();
+        if (k < 0 || k >= size(x)) return null;
+        while (true) {
+            int t = size(x.left);
+            if      (t > k) x = x.left;
+            else if (t < k) { k = k - t - 1; x = x.right; }
+            else            return x.key;
+        }
+    }
+
+    // Number of keys in the tree less than key.
+    public int rank(Key key) {
+        return rank(key, root());
+    }
+
+    private int rank(Key key, Node x) {
+        int r = 0;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) { r += 1 + size(x.left); x = x.right; }
+            else              return r + size(x.left);
+        }
+        return r;
+    }
+
+   /**
+    * Range count and range search.
+    */
+    public Iterable<Key> keys() {
+        return keys(null, null);
+    }
+
+    /**
+     * Returns the keys in [lo, hi] in ascending order, produced lazily from the version that was
+     * current when keys was called, so the result is a consistent snapshot unaffected by later
+     * updates.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        Node x = root();
+        return () -> new KeyIterator(x, lo, hi);
+    }
+
+    /** Explicit-stack in-order iterator over the keys in [lo, hi] of one version of the tree. */
+    private class KeyIterator implements Iterator<Key> {
+
+        /** Nodes still to be visited, the next one in key order on top */
+        private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+
+        /** Largest key of interest, or null to walk to the maximum */
+        private final Key hi;
+
+        public KeyIterator(Node x, Key lo, Key hi) {
+            this.hi = hi;
+            while (x != null) {
+                int cmp = (lo == null) ? -1 : lo.compareTo(x.key);
+                if (cmp < 0)      { stack.push(x); x = x.left; }
+                else if (cmp > 0) x = x.right;
+                else            { stack.push(x); break; }
+            }
+        }
+
+        public boolean hasNext() {
+            if (stack.isEmpty()) return false;
+            if (hi == null || hi.compareTo(stack.peek().key) >= 0) return true;
+            stack.clear();      // every remaining key is larger than hi
+            return false;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Key next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Node x = stack.pop();
+            for (Node t = x.right; t != null; t = t.left)
+                stack.push(t);
+            return x.key;
+        }
+    }
+
+    public int size(Key lo, Key hi) {
+        if (lo.compareTo(hi) > 0) return 0;
+        Node x = root();
+        int count = rank(hi, x) - rank(lo, x);
+        Node t = x;
+        while (t != null) {
+            int cmp = hi.compareTo(t.key);
+            if      (cmp < 0) t = t.left;
+            else if (cmp > 0) t = t.right;
+            else              return count + 1;
+        }
+        return count;
+    }
+
+    /** Returns the height of the BST. */
+    public int height() {
+        int height = -1;
+        Queue<Node> level = new Queue<Node>();
+        Node x = root();
+        if (x != null) level.enqueue(x);
+        while (!level.isEmpty()) {
+            height++;
+            for (int i = level.size(); i > 0; i--) {
+                Node t = level.dequeue();
+                if (t.left  != null) level.enqueue(t.left);
+                if (t.right != null) level.enqueue(t.right);
+            }
+        }
+        return height;
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+
+        PersistentBST<Integer, String> bst = new PersistentBST<Integer, String>();
+        int[] keys = { 30, 10, 50, 20, 40 };
+        for (int key : keys)
+            bst.put(key, "v" + key);
+
+        PersistentBST<Integer, String> snapshot = bst.snapshot();
+        bst.delete(10);
+        bst.put(60, "v60");
+        bst.deleteMin();
+        bst.put(20, "v20");
+
+        System.out.println("Snapshot size: " + snapshot.size() + ", live size: " + bst.size());
+        System.out.print("Snapshot keys: ");
+        for (int key : snapshot.keys()) System.out.print(key + " ");
+        System.out.println();
+        System.out.print("Live keys: ");
+        for (int key : bst.keys()) System.out.print(key + " ");
+        System.out.println();
+
+        bst.restore(snapshot);
+        System.out.print("Restored version " + snapshot.version() + " as version " + bst.version() + ": ");
+        for (int key : bst.keys()) System.out.print(key + " ");
+        System.out.println();
+    }
+}
@@ -1,11 +1,11 @@
 /*************************************************************************
  *  Compilation:  javac Queue.java
  *  Execution:    java Queue < input.txt
- *  Data files:   http://algs4.cs.princeton.edu/13stacks/tobe.txt  
+ *  Data files:   http://algs4.cs.princeton.edu/13stacks/tobe.txt
  *
- *  A generic queue, implemented using a linked list.
+ *  A generic queue, implemented using a resizing circular array.
  *
- *  % java Queue < tobe.txt 
+ *  % java Queue < tobe.txt
  *  to be or not to be (2 left on queue)
  *
  *************************************************************************/
@@ -21,11 +21,13 @@ import java.util.NoSuchElementException;
  *  testing if the queue is empty, and iterating through
  *  the items in FIFO order.
  *  <p>
- *  This implementation uses a singly-linked list with a static nested class for
- *  linked-list nodes. See {@link LinkedQueue} for the version from the
- *  textbook that uses a non-static nested class.
- *  The <em>enqueue</em>, <em>dequeue</em>, <em>peek</em>, <em>size</em>, and <em>is-empty</em>
- *  operations all take constant time in the worst case.
+ *  This implementation uses a circular array whose length is a power of two, doubled when
+ *  it is full and halved when it is one-quarter full, so a queue of N items costs one array
+ *  of at most 4N references instead of a node per item. See {@link IntQueue} and
+ *  {@link LongQueue} for versions that hold primitives without boxing them.
+ *  The <em>enqueue</em> and <em>dequeue</em> operations take constant amortized time;
+ *  the <em>peek</em>, <em>size</em>, and <em>is-empty</em> operations take constant time
+ *  in the worst case.
  *  <p>
  *  For additional documentation, see <a href="http://algs4.cs.princeton.edu/13stacks">Section 1.3</a> of
  *  <i>Algorithms, 4th Edition</i> by Robert Sedgewick and Kevin Wayne.
@@ -34,23 +36,34 @@ import java.util.NoSuchElementException;
  *  @author Kevin Wayne
  */
 public class Queue<Item> implements Iterable<Item> {
-    private int N;               // number of elements on queue
-    private Node<Item> first;    // beginning of queue
-    private Node<Item> last;     // end of queue
+    private static final int MIN_CAPACITY = 8;
 
-    // helper linked list class
-    private static class Node<Item> {
-        private Item item;
-        private Node<Item> next;
-    }
+    private Item[] q;            // queue elements, a power of two in length
+    private int N;               // number of elements on queue
+    private int first;           // index of first element of queue
 
     /**
      * Initializes an empty queue.
      */
     public Queue() {
-        first = null;
-        last  = null;
-        N = 0;
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Initializes an empty queue with room for the given number of items before it resizes.
+     * @param capacity the expected number of items
+     */
+    @SuppressWarnings("unchecked")
+    public Queue(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Queue capacity must not be negative");
+        q = (Item[]) new Object[capacityFor(capacity)];
+    }
+
+    // smallest power of two that is at least capacity and MIN_CAPACITY
+    static int capacityFor(int capacity) {
+        if (capacity <= MIN_CAPACITY) return MIN_CAPACITY;
+        if (capacity > 1 << 30) throw new IllegalArgumentException("Queue capacity too large: " + capacity);
+        return Integer.highestOneBit(capacity - 1) << 1;
     }
 
     /**
@@ -58,7 +71,7 @@ public class Queue<Item> implements Iterable<Item> {
      * @return true if this queue is empty; false otherwise
      */
     public boolean isEmpty() {
-        return first == null;
+        return N == 0;
     }
 
     /**
@@ -66,7 +79,18 @@ public class Queue<Item> implements Iterable<Item> {
      * @return the number of items in this queue
      */
     public int size() {
-        return N;     
+        return N;
+    }
+
+    // move the items to a new array of the given length, the first one at index 0
+    private void resize(int capacity) {
+        @SuppressWarnings("unchecked")
+        Item[] temp = (Item[]) new Object[capacity];
+        int head = Math.min(N, q.length - first);
+        System.arraycopy(q, first, temp, 0, head);
+        System.arraycopy(q, 0, temp, head, N - head);
+        q = temp;
+        first = 0;
     }
 
     /**
@@ -76,7 +100,7 @@ public class Queue<Item> implements Iterable<Item> {
      */
     public Item peek() {
         if (isEmpty()) throw new NoSuchElementException("Queue underflow");
-        return first.item;
+        return q[first];
     }
 
     /**
@@ -84,12 +108,11 @@ public class Queue<Item> implements Iterable<Item> {
      * @param item the item to add
      */
     public void enqueue(Item item) {
-        Node<Item> oldlast = last;
-        last = new Node<Item>();
-        last.item = item;
-        last.next = null;
-        if (isEmpty()) first = last;
-        else           oldlast.next = last;
+        if (N == q.length) {
+            if (N == 1 << 30) throw new IllegalStateException("Queue overflow");
+            resize(2 * q.length);
+        }
+        q[(first + N) & (q.length - 1)] = item;
         N++;
     }
 
@@ -100,10 +123,11 @@ public class Queue<Item> implements Iterable<Item> {
      */
     public Item dequeue() {
         if (isEmpty()) throw new NoSuchElementException("Queue underflow");
-        Item item = first.item;
-        first = first.next;
+        Item item = q[first];
+        q[first] = null;              // to avoid loitering
+        first = (first + 1) & (q.length - 1);
         N--;
-        if (isEmpty()) last = null;   // to avoid loitering
+        if (N > 0 && N == q.length / 4 && q.length > MIN_CAPACITY) resize(q.length / 2);
         return item;
     }
 
@@ -116,31 +140,27 @@ public class Queue<Item> implements Iterable<Item> {
         for (Item item : this)
             s.append(item + " ");
         return s.toString();
-    } 
+    }
 
     /**
      * Returns an iterator that iterates over the items in this queue in FIFO order.
      * @return an iterator that iterates over the items in this queue in FIFO order
      */
     public Iterator<Item> iterator()  {
-        return new ListIterator<Item>(first);  
+        return new ArrayIterator();
     }
 
     // an iterator, doesn't implement remove() since it's optional
-    private class ListIterator<Item> implements Iterator<Item> {
-        private Node<Item> current;
-
-        public ListIterator(Node<Item> first) {
-            current = first;
-        }
+    private class ArrayIterator implements Iterator<Item> {
+        private int i = 0;
 
-        public boolean hasNext()  { return current != null;                     }
+        public boolean hasNext()  { return i < N;                               }
         public void remove()      { throw new UnsupportedOperationException();  }
 
         public Item next() {
             if (!hasNext()) throw new NoSuchElementException();
-            Item item = current.item;
-            current = current.next; 
+            Item item = q[(first + i) & (q.length - 1)];
+            i++;
             return item;
         }
     }
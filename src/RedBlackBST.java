@@ -0,0 +1,537 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac RedBlackBST.java
+ *  Execution:    java RedBlackBST
+ *  Dependencies: StdOut.java Queue.java
+ *
+ *  A symbol table implemented with a left-leaning red-black binary search tree.
+ *  It offers the same public API as BST, but guarantees logarithmic height no
+ *  matter what order keys are inserted or deleted in, so sorted key feeds no
+ *  longer degrade the tree into a linked list.
+ *
+ *  % java RedBlackBST
+ *  Height after 100000 sorted inserts: 16
+ */
+
+import java.util.NoSuchElementException;
+
+public class RedBlackBST<Key extends Comparable<Key>, Value> {
+
+    private static final boolean RED   = true;
+    private static final boolean BLACK = false;
+
+    /** Red-Black Binary Search Tree's Root */
+    private Node root;
+
+    /** A Red-Black BST Node */
+    private class Node {
+
+        /** Key that determine position of data in BST. */
+        private Key key;
+
+        /** Data associated with key */
+        private Value val;
+
+        /** Left and Right children, potentially parents of subtrees */
+        private Node left, right;
+
+        /** Number of nodes in subtree */
+        private int N;
+
+        /** Color of the link from the parent to this node */
+        private boolean color;
+
+        /** Node Constructor */
+        public Node(Key key, Value val, int N, boolean color) {
+            this.key = key;
+            this.val = val;
+            this.N = N;
+            this.color = color;
+        }
+    }
+
+    /** Is the link to node x red? Null links are black. */
+    private boolean isRed(Node x) {
+        if (x == null) return false;
+        return x.color == RED;
+    }
+
+    /** Check to see if BST is empty */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Return size of BST */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Return number of key-value pairs in BST at a certain root.
+     * @param x the Node to examine as the root.
+     */
+    private int size(Node x) {
+        if (x == null) return 0;
+        else return x.N;
+    }
+
+    /**
+     * Checks the search tree to see if there exists a value with a given key.
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /** Return a value associated with a given key in the full BST, or null if no such key exists. */
+    public Value get(Key key) {
+        Node x = root;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) x = x.right;
+            else              return x.val;
+        }
+        return null;
+    }
+
+   /**
+    * Insert key-value pair into BST
+    * If key already exists, update with new value
+    */
+    public void put(Key key, Value val) {
+        if (val == null) { delete(key); return; }
+        root = put(root, key, val);
+        root.color = BLACK;
+        assert check();
+    }
+
+    private Node put(Node h, Key key, Value val) {
+        if (h == null) return new Node(key, val, 1, RED);
+        int cmp = key.compareTo(h.key);
+        if      (cmp < 0) h.left  = put(h.left,  key, val);
+        else if (cmp > 0) h.right = put(h.right, key, val);
+        else              h.val   = val;
+        return balance(h);
+    }
+
+   /**
+    *  Deletion
+    */
+
+    public void deleteMin() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        // if both children of root are black, set root to red
+        if (!isRed(root.left) && !isRed(root.right)) root.color = RED;
+        root = deleteMin(root);
+        if (!isEmpty()) root.color = BLACK;
+        assert check();
+    }
+
+    private Node deleteMin(Node h) {
+        if (h.left == null) return null;
+        if (!isRed(h.left) && !isRed(h.left.left)) h = moveRedLeft(h);
+        h.left = deleteMin(h.left);
+        return balance(h);
+    }
+
+    public void deleteMax() {
+        if (isEmpty()) throw new NoSuchElementException("Symbol table underflow");
+        // if both children of root are black, set root to red
+        if (!isRed(root.left) && !isRed(root.right)) root.color = RED;
+        root = deleteMax(root);
+        if (!isEmpty()) root.color = BLACK;
+        assert check();
+    }
+
+    private Node deleteMax(Node h) {
+        if (isRed(h.left)) h = rotateRight(h);
+        if (h.right == null) return null;
+        if (!isRed(h.right) && !isRed(h.right.left)) h = moveRedRight(h);
+        h.right = deleteMax(h.right);
+        return balance(h);
+    }
+
+    public void delete(Key key) {
+        if (!contains(key)) return;
+        // if both children of root are black, set root to red
+        if (!isRed(root.left) && !isRed(root.right)) root.color = RED;
+        root = delete(root, key);
+        if (!isEmpty()) root.color = BLACK;
+        assert check();
+    }
+
+    // delete the key-value pair with the given key rooted at h; key must be present
+    private Node delete(Node h, Key key) {
+        if (key.compareTo(h.key) < 0) {
+            if (!isRed(h.left) && !isRed(h.left.left)) h = moveRedLeft(h);
+            h.left = delete(h.left, key);
+        }
+        else {
+            if (isRed(h.left)) h = rotateRight(h);
+            if (key.compareTo(h.key) == 0 && (h.right == null)) return null;
+            if (!isRed(h.right) && !isRed(h.right.left)) h = moveRedRight(h);
+            if (key.compareTo(h.key) == 0) {
+                Node x = min(h.right);
+                h.key = x.key;
+                h.val = x.val;
+                h.right = deleteMin(h.right);
+            }
+            else h.right = delete(h.right, key);
+        }
+        return balance(h);
+    }
+
+   /**
+    *  Red-black tree helper functions
+    */
+
+    // make a left-leaning link lean to the right
+    private Node rotateRight(Node h) {
+        Node x = h.left;
+        h.left = x.right;
+        x.right = h;
+        x.color = h.color;
+        h.color = RED;
+        x.N = h.N;
+        h.N = size(h.left) + size(h.right) + 1;
+        return x;
+    }
+
+    // make a right-leaning link lean to the left
+    private Node rotateLeft(Node h) {
+        Node x = h.right;
+        h.right = x.left;
+        x.left = h;
+        x.color = h.color;
+        h.color = RED;
+        x.N = h.N;
+        h.N = size(h.left) + size(h.right) + 1;
+        return x;
+    }
+
+    // flip the colors of a node and its two children
+    private void flipColors(Node h) {
+        h.color = !h.color;
+        h.left.color = !h.left.color;
+        h.right.color = !h.right.color;
+    }
+
+    // Assuming that h is red and both h.left and h.left.left
+    // are black, make h.left or one of its children red.
+    private Node moveRedLeft(Node h) {
+        flipColors(h);
+        if (isRed(h.right.left)) {
+            h.right = rotateRight(h.right);
+            h = rotateLeft(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    // Assuming that h is red and both h.right and h.right.left
+    // are black, make h.right or one of its children red.
+    private Node moveRedRight(Node h) {
+        flipColors(h);
+        if (isRed(h.left.left)) {
+            h = rotateRight(h);
+            flipColors(h);
+        }
+        return h;
+    }
+
+    // restore red-black tree invariant and subtree count on the way back up
+    private Node balance(Node h) {
+        if (isRed(h.right) && !isRed(h.left))    h = rotateLeft(h);
+        if (isRed(h.left)  &&  isRed(h.left.left)) h = rotateRight(h);
+        if (isRed(h.left)  &&  isRed(h.right))     flipColors(h);
+        h.N = size(h.left) + size(h.right) + 1;
+        return h;
+    }
+
+   /**
+    * Min, max, floor, and ceiling
+    */
+    public Key min() {
+        if (isEmpty()) return null;
+        return min(root).key;
+    }
+
+    private Node min(Node x) {
+        while (x.left != null) x = x.left;
+        return x;
+    }
+
+    /** Iteratively finds the minimum key in the BST. */
+    public Key iterativeMin() {
+        return min();
+    }
+
+    public Key max() {
+        if (isEmpty()) return null;
+        return max(root).key;
+    }
+
+    private Node max(Node x) {
+        while (x.right != null) x = x.right;
+        return x;
+    }
+
+    /** Iteratively finds the maximum key in the BST. */
+    public Key iterativeMax() {
+        return max();
+    }
+
+    public Key floor(Key key) {
+        Node x = root;
+        Node best = null;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) return x.key;
+            if (cmp <  0) x = x.left;
+            else        { best = x; x = x.right; }
+        }
+        if (best == null) return null;
+        else return best.key;
+    }
+
+    public Key ceiling(Key key) {
+        Node x = root;
+        Node best = null;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if (cmp == 0) return x.key;
+            if (cmp >  0) x = x.right;
+            else        { best = x; x = x.left; }
+        }
+        if (best == null) return null;
+        else return best.key;
+    }
+
+   /**
+    * Rank and selection
+    */
+    public Key select(int k) {
+        if (k < 0 || k >= size())  return null;
+        Node x = root;
+        while (true) {
+            int t = size(x.left);
+            if      (t > k) x = x.left;
+            else if (t < k) { k = k - t - 1; x = x.right; }
+            else            return x.key;
+        }
+    }
+
+    // Number of keys in the tree less than key.
+    public int rank(Key key) {
+        Node x = root;
+        int r = 0;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) { r += 1 + size(x.left); x = x.right; }
+            else              return r + size(x.left);
+        }
+        return r;
+    }
+
+   /**
+    * Range count and range search.
+    */
+    public Iterable<Key> keys() {
+        if (isEmpty()) return new Queue<Key>();
+        return keys(min(), max());
+    }
+
+    public Iterable<Key> keys(Key lo, Key hi) {
+        Queue<Key> queue = new Queue<Key>();
+        keys(root, queue, lo, hi);
+        return queue;
+    }
+
+    // recursion depth is bounded by the (logarithmic) height of the tree
+    private void keys(Node x, Queue<Key> queue, Key lo, Key hi) {
+        if (x == null) return;
+        int cmplo = lo.compareTo(x.key);
+        int cmphi = hi.compareTo(x.key);
+        if (cmplo < 0) keys(x.left, queue, lo, hi);
+        if (cmplo <= 0 && cmphi >= 0) queue.enqueue(x.key);
+        if (cmphi > 0) keys(x.right, queue, lo, hi);
+    }
+
+    public int size(Key lo, Key hi) {
+        if (lo.compareTo(hi) > 0) return 0;
+        if (contains(hi)) return rank(hi) - rank(lo) + 1;
+        else              return rank(hi) - rank(lo);
+    }
+
+    /** Returns the height of the BST. */
+    public int height() { return height(root); }
+
+    /**
+     * Returns the height of the BST at root x.
+     * @param x The root to determine height of.
+     */
+    private int height(Node x) {
+        if (x == null) return -1;
+        return 1 + Math.max(height(x.left), height(x.right));
+    }
+
+    // level order traversal
+    public Iterable<Key> levelOrder() {
+        Queue<Key> keys = new Queue<Key>();
+        Queue<Node> queue = new Queue<Node>();
+        queue.enqueue(root);
+        while (!queue.isEmpty()) {
+            Node x = queue.dequeue();
+            if (x == null) continue;
+            keys.enqueue(x.key);
+            queue.enqueue(x.left);
+            queue.enqueue(x.right);
+        }
+        return keys;
+    }
+
+    /**
+     * Prints a path from the root to the node with Key key.
+     * @param key The key being searched.
+     */
+    public void printPath(Key key) {
+        if (!contains(key)) {
+            System.out.println("The given key (" + key + ") is not in the binary search tree.");
+            return;
+        }
+        // collect the path root -> key, then print it back to front (key -> root)
+        Queue<Key> path = new Queue<Key>();
+        Node x = root;
+        while (x != null) {
+            path.enqueue(x.key);
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) x = x.right;
+            else              break;
+        }
+        Object[] keys = new Object[path.size()];
+        int i = 0;
+        for (Key k : path) keys[i++] = k;
+        System.out.print("Path from Key (" + key + ") to Root (" + root.key + ") is: ");
+        for (i = keys.length - 1; i > 0; i--)
+            System.out.print(keys[i] + " -> ");
+        System.out.print(keys[0]);
+        System.out.println();
+    }
+
+    /**
+     * Prints the keys associated with all nodes at a certain depth.
+     * @param depth Depth of all keys to be printed.
+     */
+    public void printDepth(int depth) {
+        if (isEmpty()) {
+            System.out.println("Binary Search Tree is Empty, cannot print items at any depth.");
+        }
+        else {
+            System.out.print("Keys at Depth " + depth + ": ");
+            printDepth(root, 0, depth);
+            System.out.println();
+        }
+    }
+
+    private void printDepth(Node x, int depth, int targetDepth) {
+        if (x == null) return;
+        if (depth == targetDepth) System.out.print(x.key + " ");
+        else if (depth < targetDepth) {
+            printDepth(x.left,  depth + 1, targetDepth);
+            printDepth(x.right, depth + 1, targetDepth);
+        }
+    }
+
+  /**
+   *  Check integrity of red-black tree data structure
+   */
+    private boolean check() {
+        if (!isBST())            StdOut.println("Not in symmetric order");
+        if (!isSizeConsistent()) StdOut.println("Subtree counts not consistent");
+        if (!isRankConsistent()) StdOut.println("Ranks not consistent");
+        if (!is23())             StdOut.println("Not a 2-3 tree");
+        if (!isBalanced())       StdOut.println("Not balanced");
+        return isBST() && isSizeConsistent() && isRankConsistent() && is23() && isBalanced();
+    }
+
+    // does this binary tree satisfy symmetric order?
+    private boolean isBST() {
+        return isBST(root, null, null);
+    }
+
+    // is the tree rooted at x a BST with all keys strictly between min and max
+    // (if min or max is null, treat as empty constraint)
+    private boolean isBST(Node x, Key min, Key max) {
+        if (x == null) return true;
+        if (min != null && x.key.compareTo(min) <= 0) return false;
+        if (max != null && x.key.compareTo(max) >= 0) return false;
+        return isBST(x.left, min, x.key) && isBST(x.right, x.key, max);
+    }
+
+    // are the size fields correct?
+    private boolean isSizeConsistent() { return isSizeConsistent(root); }
+    private boolean isSizeConsistent(Node x) {
+        if (x == null) return true;
+        if (x.N != size(x.left) + size(x.right) + 1) return false;
+        return isSizeConsistent(x.left) && isSizeConsistent(x.right);
+    }
+
+    // check that ranks are consistent
+    private boolean isRankConsistent() {
+        for (int i = 0; i < size(); i++)
+            if (i != rank(select(i))) return false;
+        for (Key key : keys())
+            if (key.compareTo(select(rank(key))) != 0) return false;
+        return true;
+    }
+
+    // Does the tree have no red right links, and at most one (left)
+    // red link in a row on any path?
+    private boolean is23() { return is23(root); }
+    private boolean is23(Node x) {
+        if (x == null) return true;
+        if (isRed(x.right)) return false;
+        if (x != root && isRed(x) && isRed(x.left)) return false;
+        return is23(x.left) && is23(x.right);
+    }
+
+    // do all paths from root to leaf have same number of black edges?
+    private boolean isBalanced() {
+        int black = 0;     // number of black links on path from root to min
+        Node x = root;
+        while (x != null) {
+            if (!isRed(x)) black++;
+            x = x.left;
+        }
+        return isBalanced(root, black);
+    }
+
+    // does every path from the root to a leaf have the given number of black links?
+    private boolean isBalanced(Node x, int black) {
+        if (x == null) return black == 0;
+        if (!isRed(x)) black--;
+        return isBalanced(x.left, black) && isBalanced(x.right, black);
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+
+        // sorted inserts are the worst case for the unbalanced BST
+        RedBlackBST<Integer, Integer> rb = new RedBlackBST<Integer, Integer>();
+        for (int i = 0; i < 100000; i++)
+            rb.put(i, i);
+        System.out.println("Height after 100000 sorted inserts: " + rb.height());
+
+        // delete every other key and make sure rank/select still agree
+        for (int i = 0; i < 100000; i += 2)
+            rb.delete(i);
+        System.out.println("Size after deleting evens: " + rb.size());
+        System.out.println("Height after deleting evens: " + rb.height());
+        System.out.println("select(0) = " + rb.select(0) + ", rank(99) = " + rb.rank(99));
+        System.out.println("floor(100) = " + rb.floor(100) + ", ceiling(100) = " + rb.ceiling(100));
+    }
+}
@@ -0,0 +1,564 @@
+/**
+ *  Author(s): Source Code Creator, Anthony Isensee
+ *  Compilation:  javac SplayBST.java
+ *  Execution:    java SplayBST
+ *  Dependencies: Queue.java
+ *
+ *  A symbol table implemented with a self-adjusting (splay) binary search tree.
+ *
+ *  Every write, and a sampled fraction of the reads, splays the key it touched to the root, so
+ *  frequently accessed keys migrate near the root and stay there. Splaying is Sleator's top-down
+ *  splay, extended to keep the subtree counts N exact through every rotation, so rank, select
+ *  and size(lo, hi) work as in BST.
+ *
+ *  With splayProbability 1 this is a plain splay tree. Lower values give a semi-splay tree that
+ *  restructures on only that fraction of get and contains calls: hot keys still rise (they are
+ *  sampled often) while the bulk of the reads are ordinary descents.
+ *
+ *  The tree is safe for concurrent use. Reads take the read lock of a StampedLock and share it
+ *  with other readers. A read sampled for splaying then tries to upgrade to the write lock; if
+ *  other readers hold the lock the splay is simply skipped, so restructuring never makes readers
+ *  wait for one another. Writes take the write lock.
+ *
+ *  % java SplayBST
+ *  root after reads: H
+ *  rank(H) = 3, select(3) = H, size(C, R) = 5
+ */
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+
+public class SplayBST<Key extends Comparable<Key>, Value> {
+
+    /** Binary Search Tree's (BST's) Root */
+    private Node root;
+
+    /** Fraction of get and contains calls that splay the key they find */
+    private final double splayProbability;
+
+    /** Shared by readers, exclusive for writers and for readers that splay */
+    private final StampedLock lock = new StampedLock();
+
+    /** A BST Node */
+    private class Node {
+
+        /** Key that determine position of data in BST. */
+        private Key key;
+
+        /** Data associated with key */
+        private Value val;
+
+        /** Left and Right children, potentially parents of subtrees */
+        private Node left, right;
+
+        /** Number of nodes in subtree */
+        private int N;
+
+        /** Node Constructor */
+        public Node(Key key, Value val, int N) {
+            this.key = key;
+            this.val = val;
+            this.N = N;
+        }
+    }
+
+    /** Initializes an empty splay tree that splays on every access. */
+    public SplayBST() {
+        this(1.0);
+    }
+
+    /**
+     * Initializes an empty tree that splays on the given fraction of its reads.
+     * @param splayProbability between 0 (reads never restructure) and 1 (a classic splay tree).
+     */
+    public SplayBST(double splayProbability) {
+        if (!(splayProbability >= 0 && splayProbability <= 1))
+            throw new IllegalArgumentException("Splay probability must be in [0, 1]");
+        this.splayProbability = splayProbability;
+    }
+
+    /** Check to see if BST is empty */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Return size of BST */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size(root);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Return number of key-value pairs in BST at a certain root.
+     * @param x the Node to examine as the root.
+     */
+    private int size(Node x) {
+        if (x == null) return 0;
+        else return x.N;
+    }
+
+    /** Checks the search tree to see if there exists a value with a given key. */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Return a value associated with a given key, or null if no such key exists. A sampled
+     * fraction of the calls also splays the key (or the last node on its path) to the root.
+     */
+    public Value get(Key key) {
+        long stamp = lock.readLock();
+        try {
+            Node x = root;
+            while (x != null) {
+                int cmp = key.compareTo(x.key);
+                if      (cmp < 0) x = x.left;
+                else if (cmp > 0) x = x.right;
+                else              break;
+            }
+            Value val = (x == null) ? null : x.val;
+
+            if (splayProbability > 0 && ThreadLocalRandom.current().nextDouble() < splayProbability) {
+                // restructure only if no other reader is in the tree; never wait for them
+                long write = lock.tryConvertToWriteLock(stamp);
+                if (write != 0) {
+                    stamp = write;
+                    root = splay(root, key);
+                }
+            }
+            return val;
+        }
+        finally {
+            lock.unlock(stamp);
+        }
+    }
+
+   /**
+    * Splaying
+    */
+
+    /**
+     * Top-down splay of key in the tree rooted at t, after Sleator's size-maintaining version.
+     * Brings key to the root if present, and otherwise the last node on its search path.
+     * Nodes hung on the left and right trees during the descent have their counts fixed afterwards
+     * by one walk down each tree's spine.
+     * @return the new root.
+     */
+    private Node splay(Node t, Key key) {
+        if (t == null) return null;
+        Node header = new Node(null, null, 0);
+        Node l = header, r = header;
+        int leftSize = 0, rightSize = 0;
+        while (true) {
+            int cmp = key.compareTo(t.key);
+            if (cmp < 0) {
+                if (t.left == null) break;
+                if (key.compareTo(t.left.key) < 0) {
+                    // rotate right
+                    Node y = t.left;
+                    t.left = y.right;
+                    y.right = t;
+                    t.N = size(t.left) + size(t.right) + 1;
+                    t = y;
+                    if (t.left == null) break;
+                }
+                // link right
+                r.left = t;
+                r = t;
+                t = t.left;
+                rightSize += 1 + size(r.right);
+            }
+            else if (cmp > 0) {
+                if (t.right == null) break;
+                if (key.compareTo(t.right.key) > 0) {
+                    // rotate left
+                    Node y = t.right;
+                    t.right = y.left;
+                    y.left = t;
+                    t.N = size(t.left) + size(t.right) + 1;
+                    t = y;
+                    if (t.right == null) break;
+                }
+                // link left
+                l.right = t;
+                l = t;
+                t = t.right;
+                leftSize += 1 + size(l.left);
+            }
+            else break;
+        }
+
+        // the final left tree holds leftSize plus t's left subtree, the right tree likewise
+        leftSize += size(t.left);
+        rightSize += size(t.right);
+        t.N = leftSize + rightSize + 1;
+        l.right = null;
+        r.left = null;
+
+        // walk down the right spine of the left tree and the left spine of the right tree, setting
+        // each count to the size of what lies below it once t's subtrees are attached
+        for (Node y = header.right; y != null; y = y.right) {
+            y.N = leftSize;
+            leftSize -= 1 + size(y.left);
+        }
+        for (Node y = header.left; y != null; y = y.left) {
+            y.N = rightSize;
+            rightSize -= 1 + size(y.right);
+        }
+
+        // assemble
+        l.right = t.left;
+        r.left = t.right;
+        t.left = header.right;
+        t.right = header.left;
+        return t;
+    }
+
+   /**
+    * Insert key-value pair into BST
+    * If key already exists, update with new value
+    */
+    public void put(Key key, Value val) {
+        if (val == null) { delete(key); return; }
+        long stamp = lock.writeLock();
+        try {
+            if (root == null) {
+                root = new Node(key, val, 1);
+                return;
+            }
+            root = splay(root, key);
+            int cmp = key.compareTo(root.key);
+            if (cmp == 0) {
+                root.val = val;
+                return;
+            }
+
+            // the new key becomes the root, taking one side of the old root with it
+            Node x = new Node(key, val, root.N + 1);
+            if (cmp < 0) {
+                x.left = root.left;
+                x.right = root;
+                root.left = null;
+            }
+            else {
+                x.right = root.right;
+                x.left = root;
+                root.right = null;
+            }
+            root.N = size(root.left) + size(root.right) + 1;
+            root = x;
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+   /**
+    *  Deletion
+    */
+
+    public void delete(Key key) {
+        long stamp = lock.writeLock();
+        try {
+            delete0(key);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Deletes key; called with the write lock held. */
+    private void delete0(Key key) {
+        if (root == null) return;
+        root = splay(root, key);
+        if (key.compareTo(root.key) != 0) return;
+
+        if (root.left == null) root = root.right;
+        else {
+            // splaying key in the left subtree brings its maximum up with no right child
+            Node right = root.right;
+            root = splay(root.left, key);
+            root.right = right;
+            root.N = size(root.left) + size(right) + 1;
+        }
+    }
+
+    public void deleteMin() {
+        long stamp = lock.writeLock();
+        try {
+            if (root == null) throw new NoSuchElementException("Symbol table underflow");
+            delete0(min(root).key);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void deleteMax() {
+        long stamp = lock.writeLock();
+        try {
+            if (root == null) throw new NoSuchElementException("Symbol table underflow");
+            delete0(max(root).key);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+   /**
+    * Min, max, floor, and ceiling, which do not restructure the tree
+    */
+    public Key min() {
+        long stamp = lock.readLock();
+        try {
+            if (root == null) return null;
+            return min(root).key;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Node min(Node x) {
+        while (x.left != null) x = x.left;
+        return x;
+    }
+
+    public Key max() {
+        long stamp = lock.readLock();
+        try {
+            if (root == null) return null;
+            return max(root).key;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Node max(Node x) {
+        while (x.right != null) x = x.right;
+        return x;
+    }
+
+    public Key floor(Key key) {
+        long stamp = lock.readLock();
+        try {
+            Node x = root;
+            Node best = null;
+            while (x != null) {
+                int cmp = key.compareTo(x.key);
+                if (cmp == 0) return x.key;
+                if (cmp <  0) x = x.left;
+                else        { best = x; x = x.right; }
+            }
+            if (best == null) return null;
+            else return best.key;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public Key ceiling(Key key) {
+        long stamp = lock.readLock();
+        try {
+            Node x = root;
+            Node best = null;
+            while (x != null) {
+                int cmp = key.compareTo(x.key);
+                if (cmp == 0) return x.key;
+                if (cmp >  0) x = x.right;
+                else        { best = x; x = x.left; }
+            }
+            if (best == null) return null;
+            else return best.key;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+   /**
+    * Rank and selection
+    */
+    public Key select(int k) {
+        long stamp = lock.readLock();
+        try {
+            Node x = root;
+            if (k < 0 || k >= size(x)) return null;
+            while (true) {
+                int t = size(x.left);
+                if      (t > k) x = x.left;
+                else if (t < k) { k = k - t - 1; x = x.right; }
+                else            return x.key;
+            }
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Number of keys in the tree less than key.
+    public int rank(Key key) {
+        long stamp = lock.readLock();
+        try {
+            return rank(key, root);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int rank(Key key, Node x) {
+        int r = 0;
+        while (x != null) {
+            int cmp = key.compareTo(x.key);
+            if      (cmp < 0) x = x.left;
+            else if (cmp > 0) { r += 1 + size(x.left); x = x.right; }
+            else              return r + size(x.left);
+        }
+        return r;
+    }
+
+   /**
+    * Range count and range search.
+    */
+    public Iterable<Key> keys() {
+        return keys(null, null);
+    }
+
+    /**
+     * Returns the keys in [lo, hi] in ascending order, copied under the read lock so that the
+     * result is unaffected by later writes and splays.
+     * @param lo Smallest key of the range, or null for no lower bound.
+     * @param hi Largest key of the range, or null for no upper bound.
+     */
+    public Iterable<Key> keys(Key lo, Key hi) {
+        Queue<Key> queue = new Queue<Key>();
+        long stamp = lock.readLock();
+        try {
+            ArrayDeque<Node> stack = new ArrayDeque<Node>();
+            Node x = root;
+            while (x != null || !stack.isEmpty()) {
+                if (x != null) {
+                    // skip left subtrees that lie entirely below lo
+                    if (lo == null || lo.compareTo(x.key) <= 0) { stack.push(x); x = x.left; }
+                    else                                          x = x.right;
+                    continue;
+                }
+                Node t = stack.pop();
+                if (hi != null && hi.compareTo(t.key) < 0) break;
+                queue.enqueue(t.key);
+                x = t.right;
+            }
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+        return queue;
+    }
+
+    public int size(Key lo, Key hi) {
+        if (lo.compareTo(hi) > 0) return 0;
+        long stamp = lock.readLock();
+        try {
+            int count = rank(hi, root) - rank(lo, root);
+            for (Node x = root; x != null; ) {
+                int cmp = hi.compareTo(x.key);
+                if      (cmp < 0) x = x.left;
+                else if (cmp > 0) x = x.right;
+                else              return count + 1;
+            }
+            return count;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Returns the height of the BST. */
+    public int height() {
+        long stamp = lock.readLock();
+        try {
+            int height = -1;
+            ArrayDeque<Node> level = new ArrayDeque<Node>();
+            if (root != null) level.add(root);
+            while (!level.isEmpty()) {
+                height++;
+                for (int i = level.size(); i > 0; i--) {
+                    Node t = level.remove();
+                    if (t.left  != null) level.add(t.left);
+                    if (t.right != null) level.add(t.right);
+                }
+            }
+            return height;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Returns the key at the root, the most recently splayed one, or null if the tree is empty. */
+    public Key root() {
+        long stamp = lock.readLock();
+        try {
+            if (root == null) return null;
+            return root.key;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+  /**
+   *  Check integrity of BST data structure
+   */
+
+    /**
+     * Verifies the whole tree in O(N) time: keys must be in strictly increasing order and every
+     * subtree count must equal the counts of its children plus one.
+     */
+    public boolean verify() {
+        long stamp = lock.readLock();
+        try {
+            ArrayDeque<Node> stack = new ArrayDeque<Node>();
+            Key previous = null;
+            int visited = 0;
+            for (Node x = root; x != null; x = x.left) stack.push(x);
+            while (!stack.isEmpty()) {
+                Node x = stack.pop();
+                if (++visited > size(root)) return false;
+                if (previous != null && previous.compareTo(x.key) >= 0) return false;
+                if (x.N != size(x.left) + size(x.right) + 1) return false;
+                previous = x.key;
+                for (Node t = x.right; t != null; t = t.left) stack.push(t);
+            }
+            return visited == size(root);
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+    * Test client
+    */
+    public static void main(String[] args) {
+        SplayBST<String, Integer> st = new SplayBST<String, Integer>();
+        String[] keys = { "S", "E", "A", "R", "C", "H", "X", "M" };
+        for (int i = 0; i < keys.length; i++)
+            st.put(keys[i], i);
+        for (int i = 0; i < 3; i++)
+            st.get("H");
+        System.out.println("root after reads: " + st.root());
+        System.out.println("rank(H) = " + st.rank("H") + ", select(3) = " + st.select(3)
+                + ", size(C, R) = " + st.size("C", "R"));
+    }
+}